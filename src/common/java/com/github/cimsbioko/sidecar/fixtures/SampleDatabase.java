@@ -0,0 +1,51 @@
+package com.github.cimsbioko.sidecar.fixtures;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates reproducible SQLite-shaped files for the benchmarks and load tests: a real database header followed by
+ * pages that are three quarters record-like text and one quarter free space, so they compress and delta much like
+ * field databases.
+ */
+public final class SampleDatabase {
+
+    public static final int PAGE_SIZE = 4096;
+
+    private static final byte[] SQLITE_HEADER = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789|,-. ".getBytes(StandardCharsets.US_ASCII);
+
+    private SampleDatabase() {
+    }
+
+    /**
+     * Writes a database of the given size. The same size and seed always produce the same file.
+     */
+    public static void write(File target, int megabytes, long seed) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 1 << 16)) {
+            long pages = megabytes * (1024L * 1024 / PAGE_SIZE);
+            for (long p = 0; p < pages; p++) {
+                out.write(page(p, seed));
+            }
+        }
+    }
+
+    /**
+     * Returns the content of the given page, the header page for index 0.
+     */
+    public static byte[] page(long index, long seed) {
+        byte[] page = new byte[PAGE_SIZE];
+        if (index == 0) {
+            System.arraycopy(SQLITE_HEADER, 0, page, 0, SQLITE_HEADER.length);
+            page[16] = (byte) (PAGE_SIZE >>> 8);
+            page[17] = (byte) PAGE_SIZE;
+            return page;
+        }
+        Random random = new Random(seed * 31 + index);
+        for (int i = 0; i < PAGE_SIZE * 3 / 4; i++) {
+            page[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+        return page;
+    }
+}
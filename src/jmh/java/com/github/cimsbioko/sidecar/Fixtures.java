@@ -0,0 +1,92 @@
+package com.github.cimsbioko.sidecar;
+
+import com.github.batkinson.jrsync.MetadataInputWrapper;
+import com.github.cimsbioko.sidecar.fixtures.SampleDatabase;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Caches reproducible {@link SampleDatabase} files, updates of them and their metadata for the benchmarks.
+ */
+final class Fixtures {
+
+    static final int PAGE_SIZE = SampleDatabase.PAGE_SIZE;
+    static final String HASH_ALG = "MD5";
+
+    private Fixtures() {
+    }
+
+    static File dir() throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "sidecar-jmh");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("failed to create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Returns a database of the given size, generating it only if an earlier fork has not already done so.
+     */
+    static File database(int megabytes, long seed) throws IOException {
+        File db = new File(dir(), String.format("base-%dm-%d.db", megabytes, seed));
+        if (!db.exists()) {
+            File tmp = File.createTempFile("base-", ".tmp", dir());
+            SampleDatabase.write(tmp, megabytes, seed);
+            Files.move(tmp.toPath(), db.toPath(), REPLACE_EXISTING);
+        }
+        return db;
+    }
+
+    /**
+     * Returns a copy of base with the given fraction of its pages rewritten, as a campaign update would.
+     */
+    static File update(File base, double fraction, long seed) throws IOException {
+        File updated = new File(dir(), String.format("%s-%.3f-%d.db", base.getName().replace(".db", ""), fraction, seed));
+        if (!updated.exists()) {
+            File tmp = File.createTempFile("update-", ".tmp", dir());
+            Files.copy(base.toPath(), tmp.toPath(), REPLACE_EXISTING);
+            Random random = new Random(seed);
+            try (FileChannel ch = FileChannel.open(tmp.toPath(), READ, WRITE)) {
+                long pages = ch.size() / PAGE_SIZE, changed = Math.round(pages * fraction);
+                for (long i = 0; i < changed; i++) {
+                    long p = 1 + (long) (random.nextDouble() * (pages - 1));
+                    ch.write(ByteBuffer.wrap(SampleDatabase.page(p, seed ^ random.nextLong())), p * PAGE_SIZE);
+                }
+            }
+            Files.move(tmp.toPath(), updated.toPath(), REPLACE_EXISTING);
+        }
+        return updated;
+    }
+
+    /**
+     * Generates jrsync metadata for the file the same way a full download does.
+     */
+    static File metadata(File db, int blockSize) throws IOException, NoSuchAlgorithmException {
+        MetadataInputWrapper wrapper = new MetadataInputWrapper(new FileInputStream(db), "", blockSize, HASH_ALG, HASH_ALG, dir());
+        try {
+            drain(wrapper);
+        } finally {
+            wrapper.close();
+        }
+        return wrapper.getMetadataFile();
+    }
+
+    static long drain(InputStream in) throws IOException {
+        byte[] buf = new byte[1 << 16];
+        long total = 0;
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,33 @@
+package com.github.cimsbioko.sidecar;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verification cost of installed content, as paid by {@code ContentService.computeHash} on startup and audit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"16", "128"})
+    public int megabytes;
+
+    private File db;
+
+    @Setup
+    public void setup() throws Exception {
+        db = Fixtures.database(megabytes, 1);
+    }
+
+    @Benchmark
+    public byte[] computeHash() throws Exception {
+        return ContentService.hash(db, Fixtures.HASH_ALG);
+    }
+}
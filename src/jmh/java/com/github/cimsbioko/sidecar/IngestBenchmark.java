@@ -0,0 +1,60 @@
+package com.github.cimsbioko.sidecar;
+
+import com.github.batkinson.jrsync.MetadataInputWrapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Full download ingestion: the database stream is hashed and block-summarized while it is written, at the block sizes
+ * a server might choose.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IngestBenchmark {
+
+    @Param({"64"})
+    public int megabytes;
+
+    @Param({"4096", "16384", "65536"})
+    public int blockSize;
+
+    private File db, target;
+
+    @Setup
+    public void setup() throws Exception {
+        db = Fixtures.database(megabytes, 1);
+        target = File.createTempFile("ingest-", ".db", Fixtures.dir());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(target.toPath());
+    }
+
+    @Benchmark
+    public byte[] ingest() throws Exception {
+        File metadata;
+        byte[] hash;
+        try (MetadataInputWrapper wrapper = new MetadataInputWrapper(new FileInputStream(db), "", blockSize,
+                Fixtures.HASH_ALG, Fixtures.HASH_ALG, Fixtures.dir())) {
+            DigestInputStream digestStream = new DigestInputStream(wrapper, MessageDigest.getInstance(Fixtures.HASH_ALG));
+            Files.copy(digestStream, target.toPath(), REPLACE_EXISTING);
+            hash = digestStream.getMessageDigest().digest();
+            metadata = wrapper.getMetadataFile();
+        }
+        Files.deleteIfExists(metadata.toPath());
+        return hash;
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.cimsbioko.sidecar;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A loopback HTTP server for a single file that answers single and multi-span range requests the way the upstream
+ * server does, so ZSync can be measured without a network.
+ */
+final class RangeServer implements AutoCloseable {
+
+    private static final String BOUNDARY = "bench-boundary";
+    private static final String SQLITE_MIME_TYPE = "application/x-sqlite3";
+
+    private final File file;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    RangeServer(File file) throws IOException {
+        this.file = file;
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "range-server");
+            t.setDaemon(true);
+            return t;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    URI getURI() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/" + file.getName());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), READ)) {
+            long length = ch.size();
+            String range = exchange.getRequestHeaders().getFirst(FileSender.RANGE);
+            List<long[]> spans = new ArrayList<>();
+            if (range != null) {
+                for (String span : range.substring("bytes=".length()).split(",")) {
+                    long[] bounds = FileSender.parseRange("bytes=" + span.trim(), length);
+                    if (bounds != null) {
+                        spans.add(bounds);
+                    }
+                }
+            }
+            if (spans.isEmpty()) {
+                exchange.getResponseHeaders().set("Content-Type", SQLITE_MIME_TYPE);
+                exchange.sendResponseHeaders(200, length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    ch.transferTo(0, length, Channels.newChannel(out));
+                }
+            } else if (spans.size() == 1) {
+                long[] span = spans.get(0);
+                exchange.getResponseHeaders().set("Content-Type", SQLITE_MIME_TYPE);
+                exchange.getResponseHeaders().set("Content-Range", contentRange(span, length));
+                exchange.sendResponseHeaders(206, span[1] - span[0]);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    ch.transferTo(span[0], span[1] - span[0], Channels.newChannel(out));
+                }
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=" + BOUNDARY);
+                exchange.sendResponseHeaders(206, 0);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    for (long[] span : spans) {
+                        out.write(ascii("\r\n--" + BOUNDARY + "\r\nContent-Type: " + SQLITE_MIME_TYPE
+                                + "\r\nContent-Range: " + contentRange(span, length) + "\r\n\r\n"));
+                        ch.transferTo(span[0], span[1] - span[0], Channels.newChannel(out));
+                    }
+                    out.write(ascii("\r\n--" + BOUNDARY + "--\r\n"));
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String contentRange(long[] span, long length) {
+        return String.format("bytes %d-%d/%d", span[0], span[1] - 1, length);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,184 @@
+package com.github.cimsbioko.sidecar;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.cimsbioko.sidecar.events.ContentReady;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.actuate.metrics.dropwizard.DropwizardMetricServices;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.codec.binary.Hex.encodeHexString;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+/**
+ * The tablet-facing database download path through {@link MobileDatabaseEndpoint}, from request handling down to
+ * writing the body, with the response discarded so only the sidecar's own cost is measured. Requests support async
+ * processing as they do under Tomcat, so gated downloads go through the non-blocking writer; sendfile is not offered,
+ * as it would hand the body to the connector unmeasured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ServeBenchmark {
+
+    private static final String CAMPAIGN = "bench";
+
+    @Param({"64"})
+    public int megabytes;
+
+    @Param({"identity", "gzip", "range", "not-modified"})
+    public String variant;
+
+    @Param({"0", "8"})
+    public int maxConcurrent;
+
+    /**
+     * Memory for the hot content cache, off by default; pass -p cacheSize=... to serve from memory instead.
+     */
+    @Param({"0"})
+    public long cacheSize;
+
+    private MobileDatabaseEndpoint endpoint;
+    private Content content;
+    private File compressed, metadata;
+
+    @Setup
+    public void setup() throws Exception {
+        File db = Fixtures.database(megabytes, 1);
+        metadata = Fixtures.metadata(db, 65536);
+        compressed = new File(Fixtures.dir(), db.getName() + ".gz");
+        if (!compressed.exists()) {
+            Compressor compressor = new Compressor(0);
+            compressor.compress(db, compressed);
+            compressor.shutdown();
+        }
+        content = new Content(encodeHexString(ContentService.hash(db, Fixtures.HASH_ALG)), db, metadata, compressed, null);
+
+        Campaign campaign = new Campaign();
+        campaign.setUuid(CAMPAIGN);
+        campaign.setName(CAMPAIGN);
+
+        DropwizardMetricServices metricServices = new DropwizardMetricServices(new MetricRegistry());
+        FileSender sender = new FileSender();
+        setField(sender, "gauges", metricServices);
+        setField(sender, "metrics", new MetricRegistry());
+        setField(sender, "async", true);
+        setField(sender, "maxRanges", 100);
+        setField(sender, "mergeGap", 16384L);
+
+        endpoint = new MobileDatabaseEndpoint();
+        setField(endpoint, "campaignService", new CampaignService(null) {
+            @Override
+            public Optional<Campaign> getCampaign(String uuid) {
+                return Optional.of(campaign);
+            }
+        });
+        setField(endpoint, "contentService", new ContentService() {
+            @Override
+            public Content getContent(Campaign campaign) {
+                return content;
+            }
+        });
+        setField(endpoint, "deltaService", new DeltaService() {
+            @Override
+            public File getDelta(Campaign campaign, String fromHash, Content current) {
+                return null;
+            }
+        });
+        setField(endpoint, "counters", metricServices);
+        setField(endpoint, "sender", sender);
+        setField(endpoint, "gate", new DownloadGate(maxConcurrent, 16, 30000, 30, 0));
+        FileSystem fs = new FileSystem();
+        setField(fs, "dataDir", Fixtures.dir().toPath());
+        VersionStore versions = new VersionStore();
+        setField(versions, "fs", fs);
+        setField(endpoint, "versions", versions);
+        ContentCache cache = new ContentCache();
+        setField(cache, "counters", metricServices);
+        setField(cache, "gauges", metricServices);
+        setField(cache, "budget", cacheSize);
+        setField(cache, "maxFileSize", cacheSize);
+        cache.onContentReady(new ContentReady(campaign, content));
+        setField(endpoint, "cache", cache);
+        setField(endpoint, "demand", new DemandTracker());
+        setField(endpoint, "holds", new ContentHolds());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(metadata.toPath());
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/rest/mobiledb/" + CAMPAIGN);
+        request.setAsyncSupported(true);
+        request.addHeader("Accept", "application/x-sqlite3");
+        switch (variant) {
+            case "gzip":
+                request.addHeader("Accept-Encoding", "gzip");
+                break;
+            case "range":
+                request.addHeader("Range", "bytes=" + (content.getContentFile().length() / 2) + "-");
+                break;
+            case "not-modified":
+                request.addHeader("If-None-Match", "\"" + content.getContentHash() + "\"");
+                break;
+        }
+        DiscardingResponse response = new DiscardingResponse();
+        endpoint.mobileDB(CAMPAIGN, new ServletWebRequest(request, response), response);
+        return response.written;
+    }
+
+    private static class DiscardingResponse extends MockHttpServletResponse {
+
+        private long written;
+
+        private final ServletOutputStream out = new ServletOutputStream() {
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            /**
+             * Drains async transfers at once, as the connector would for a client that keeps up.
+             */
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                try {
+                    writeListener.onWritePossible();
+                } catch (IOException e) {
+                    writeListener.onError(e);
+                }
+            }
+
+            @Override
+            public void write(int b) {
+                written++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written += len;
+            }
+        };
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return out;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.cimsbioko.sidecar;
+
+import com.github.batkinson.jrsync.Metadata;
+import com.github.batkinson.jrsync.zsync.ZSync;
+import com.github.cimsbioko.sidecar.http.ConnectionPool;
+import com.github.cimsbioko.sidecar.http.PooledRequestFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incremental update of a seed database to a target with a fraction of its pages changed, fetching the missing blocks
+ * from a loopback range server. A zero fraction measures the local-only path, where every block comes from the seed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZSyncBenchmark {
+
+    @Param({"64"})
+    public int megabytes;
+
+    @Param({"0", "0.01", "0.1"})
+    public double changed;
+
+    @Param({"65536"})
+    public int blockSize;
+
+    @Param({"1", "4"})
+    public int connections;
+
+    private File seed, target;
+    private Metadata metadata;
+    private RangeServer server;
+    private ConnectionPool pool;
+
+    @Setup
+    public void setup() throws Exception {
+        seed = Fixtures.database(megabytes, 1);
+        File update = Fixtures.update(seed, changed, 2);
+        File metadataFile = Fixtures.metadata(update, blockSize);
+        try (DataInputStream in = new DataInputStream(new FileInputStream(metadataFile))) {
+            metadata = Metadata.read(in);
+        }
+        Files.deleteIfExists(metadataFile.toPath());
+        server = new RangeServer(update);
+        pool = new ConnectionPool(connections, Fixtures.dir().toPath());
+        target = File.createTempFile("zsync-", ".db", Fixtures.dir());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+        pool.shutdown();
+        Files.deleteIfExists(target.toPath());
+    }
+
+    @Benchmark
+    public File sync() throws Exception {
+        ZSync.sync(metadata, seed, target, new PooledRequestFactory(server.getURI(), "application/x-sqlite3", null, pool, n -> {
+        }));
+        return target;
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.cimsbioko.sidecar.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stands in for the CIMS server: lists a single campaign and serves a generated SQLite-shaped database for it, so a
+ * sidecar can be seeded without network access or credentials.
+ */
+class FakeUpstream implements AutoCloseable {
+
+    static final String CAMPAIGNS_PATH = "/api/rest/mycampaigns";
+    static final String DOWNLOAD_PATH = "/api/rest/mobiledb/";
+
+    private final String campaign;
+    private final File database;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "fake-upstream");
+        t.setDaemon(true);
+        return t;
+    });
+
+    FakeUpstream(String campaign, File database) throws IOException {
+        this.campaign = campaign;
+        this.database = database;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(CAMPAIGNS_PATH, this::campaigns);
+        server.createContext(DOWNLOAD_PATH + campaign, this::database);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    URI getURI() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    private void campaigns(HttpExchange exchange) throws IOException {
+        byte[] body = String.format("[{\"uuid\":\"%s\",\"name\":\"%s\"}]", campaign, campaign).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void database(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/x-sqlite3");
+        exchange.sendResponseHeaders(200, database.length());
+        try (OutputStream out = exchange.getResponseBody()) {
+            Files.copy(database.toPath(), out);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
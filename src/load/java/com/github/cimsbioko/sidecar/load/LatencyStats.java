@@ -0,0 +1,59 @@
+package com.github.cimsbioko.sidecar.load;
+
+import java.util.Arrays;
+
+/**
+ * Per-tablet, per-request-type samples. Each simulated tablet records into its own instance, so recording is
+ * uncontended; instances are merged once the run is over.
+ */
+class LatencyStats {
+
+    private long[] latencies = new long[1024];
+    private int count, errors;
+    private long bytes;
+
+    void record(long nanos, long bytesRead, boolean error) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = nanos;
+        bytes += bytesRead;
+        if (error) {
+            errors++;
+        }
+    }
+
+    void merge(LatencyStats other) {
+        if (count + other.count > latencies.length) {
+            latencies = Arrays.copyOf(latencies, count + other.count);
+        }
+        System.arraycopy(other.latencies, 0, latencies, count, other.count);
+        count += other.count;
+        errors += other.errors;
+        bytes += other.bytes;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int getErrors() {
+        return errors;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the latency at the given percentile in milliseconds, sorting the samples in place.
+     */
+    double percentile(double p) {
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(latencies, 0, count);
+        int index = (int) Math.ceil(p / 100 * count) - 1;
+        return latencies[Math.max(0, Math.min(count - 1, index))] / 1e6;
+    }
+}
@@ -0,0 +1,276 @@
+package com.github.cimsbioko.sidecar.load;
+
+import com.github.batkinson.jrsync.Metadata;
+import com.github.cimsbioko.sidecar.Application;
+import com.github.cimsbioko.sidecar.fixtures.SampleDatabase;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Simulates a fleet of tablets against the mobiledb endpoint of a sidecar and reports throughput, latency percentiles
+ * and error rates per request type. Without a target, it seeds and starts a sidecar in-process behind a fake upstream.
+ * <p>
+ * Options are given as name=value arguments: tablets, duration (s), think (ms between requests per tablet), size (MB
+ * of generated content), mix (weights per request type, e.g. poll:60,metadata:15,database:15,range:10), range (KB per
+ * range request), gzip (true to accept compressed full downloads), target (base url of an existing sidecar) and
+ * campaign.
+ */
+public class LoadTest {
+
+    private static final String SQLITE_MIME_TYPE = "application/x-sqlite3";
+    private static final String DOWNLOAD_PATH = "api/rest/mobiledb/";
+
+    enum Kind {
+        POLL(304), METADATA(200), DATABASE(200), RANGE(206);
+
+        final int expected;
+
+        Kind(int expected) {
+            this.expected = expected;
+        }
+    }
+
+    private final URI endpoint;
+    private final String hash;
+    private final long length;
+    private final Map<String, String> options;
+    private final double[] weights = new double[Kind.values().length];
+
+    private LoadTest(URI endpoint, String hash, long length, Map<String, String> options) {
+        this.endpoint = endpoint;
+        this.hash = hash;
+        this.length = length;
+        this.options = options;
+        for (String entry : option("mix", "poll:60,metadata:15,database:15,range:10").split(",")) {
+            String[] parts = entry.split(":");
+            weights[Kind.valueOf(parts[0].trim().toUpperCase()).ordinal()] = Double.parseDouble(parts[1]);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                options.put(arg.substring(0, eq).replaceFirst("^--", ""), arg.substring(eq + 1));
+            }
+        }
+        int tablets = Integer.parseInt(options.getOrDefault("tablets", "50"));
+        String campaign = options.getOrDefault("campaign", "load-test");
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(tablets));
+        }
+
+        Path workDir = null;
+        FakeUpstream upstream = null;
+        ConfigurableApplicationContext sidecar = null;
+        try {
+            URI base;
+            String target = options.get("target");
+            if (target != null) {
+                base = URI.create(target.endsWith("/") ? target : target + "/");
+            } else {
+                workDir = Files.createTempDirectory("sidecar-load");
+                Path dataDir = Files.createDirectory(workDir.resolve("data"));
+                File db = workDir.resolve("upstream.db").toFile();
+                int megabytes = Integer.parseInt(options.getOrDefault("size", "32"));
+                System.out.printf("generating %dMB of content in %s%n", megabytes, workDir);
+                SampleDatabase.write(db, megabytes, 1);
+                upstream = new FakeUpstream(campaign, db);
+                sidecar = new SpringApplicationBuilder(Application.class).run(
+                        "--cims.server.url=" + upstream.getURI(),
+                        "--app.data.dir=" + dataDir,
+                        "--server.port=0",
+                        "--logging.level.root=WARN");
+                base = URI.create("http://127.0.0.1:" + ((EmbeddedWebApplicationContext) sidecar).getEmbeddedServletContainer().getPort() + "/");
+            }
+            URI endpoint = base.resolve(DOWNLOAD_PATH + campaign);
+            System.out.printf("waiting for content at %s%n", endpoint);
+            HttpURLConnection probe = awaitContent(endpoint, TimeUnit.MINUTES.toMillis(10));
+            String eTag = probe.getHeaderField("ETag");
+            LoadTest test = new LoadTest(endpoint, eTag == null ? "" : eTag.replace("\"", ""), probe.getContentLengthLong(), options);
+            probe.disconnect();
+            test.run(tablets);
+        } finally {
+            if (sidecar != null) {
+                sidecar.close();
+            }
+            if (upstream != null) {
+                upstream.close();
+            }
+            if (workDir != null) {
+                deleteRecursively(workDir);
+            }
+        }
+    }
+
+    private static HttpURLConnection awaitContent(URI endpoint, long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            HttpURLConnection c = (HttpURLConnection) endpoint.toURL().openConnection();
+            c.setRequestMethod("HEAD");
+            c.setRequestProperty("Accept", SQLITE_MIME_TYPE);
+            try {
+                if (c.getResponseCode() == 200) {
+                    return c;
+                }
+            } catch (IOException e) {
+                // not up yet
+            }
+            c.disconnect();
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("no content available at " + endpoint);
+            }
+            Thread.sleep(1000);
+        }
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private void run(int tablets) throws Exception {
+        long duration = TimeUnit.SECONDS.toMillis(Long.parseLong(option("duration", "60")));
+        long think = Long.parseLong(option("think", "1000"));
+        System.out.printf("simulating %d tablets for %ds against %d byte content %s%n", tablets, duration / 1000, length, hash);
+
+        ExecutorService executor = Executors.newFixedThreadPool(tablets);
+        long start = System.currentTimeMillis(), deadline = start + duration;
+        List<Future<Map<Kind, LatencyStats>>> results = new ArrayList<>();
+        for (int i = 0; i < tablets; i++) {
+            long seed = i;
+            results.add(executor.submit(() -> tablet(new Random(seed), think, deadline)));
+        }
+        Map<Kind, LatencyStats> totals = new EnumMap<>(Kind.class);
+        for (Kind kind : Kind.values()) {
+            totals.put(kind, new LatencyStats());
+        }
+        for (Future<Map<Kind, LatencyStats>> result : results) {
+            result.get().forEach((kind, stats) -> totals.get(kind).merge(stats));
+        }
+        executor.shutdown();
+        report(totals, (System.currentTimeMillis() - start) / 1000.0);
+    }
+
+    private Map<Kind, LatencyStats> tablet(Random random, long think, long deadline) throws InterruptedException {
+        Map<Kind, LatencyStats> stats = new EnumMap<>(Kind.class);
+        for (Kind kind : Kind.values()) {
+            stats.put(kind, new LatencyStats());
+        }
+        Thread.sleep(think > 0 ? (long) (random.nextDouble() * think) : 0);  // stagger the fleet
+        while (System.currentTimeMillis() < deadline) {
+            Kind kind = pick(random);
+            long began = System.nanoTime();
+            long[] result = request(kind, random);
+            stats.get(kind).record(System.nanoTime() - began, result[1], result[0] != kind.expected);
+            if (think > 0) {
+                Thread.sleep((long) (think * (0.5 + random.nextDouble())));
+            }
+        }
+        return stats;
+    }
+
+    private Kind pick(Random random) {
+        double total = 0;
+        for (double w : weights) {
+            total += w;
+        }
+        double r = random.nextDouble() * total;
+        for (Kind kind : Kind.values()) {
+            r -= weights[kind.ordinal()];
+            if (r < 0) {
+                return kind;
+            }
+        }
+        return Kind.POLL;
+    }
+
+    /**
+     * Issues a request of the given kind, returning the status code (or -1 on failure) and the body bytes read.
+     */
+    private long[] request(Kind kind, Random random) {
+        try {
+            HttpURLConnection c = (HttpURLConnection) endpoint.toURL().openConnection();
+            switch (kind) {
+                case POLL:
+                    c.setRequestProperty("Accept", Metadata.MIME_TYPE + ", " + SQLITE_MIME_TYPE);
+                    c.setRequestProperty("If-None-Match", "\"" + hash + "\"");
+                    break;
+                case METADATA:
+                    c.setRequestProperty("Accept", Metadata.MIME_TYPE + ", " + SQLITE_MIME_TYPE);
+                    c.setRequestProperty("If-None-Match", "\"stale\"");
+                    break;
+                case DATABASE:
+                    c.setRequestProperty("Accept", SQLITE_MIME_TYPE);
+                    if (Boolean.parseBoolean(option("gzip", "false"))) {
+                        c.setRequestProperty("Accept-Encoding", "gzip");
+                    }
+                    break;
+                case RANGE:
+                    long size = Long.parseLong(option("range", "1024")) * 1024,
+                            offset = (long) (random.nextDouble() * Math.max(1, length - size));
+                    c.setRequestProperty("Accept", SQLITE_MIME_TYPE);
+                    c.setRequestProperty("Range", String.format("bytes=%d-%d", offset, offset + size - 1));
+                    break;
+            }
+            int status = c.getResponseCode();
+            long read = 0;
+            try (InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream()) {
+                if (in != null) {
+                    byte[] buf = new byte[65536];
+                    int n;
+                    while ((n = in.read(buf)) >= 0) {
+                        read += n;
+                    }
+                }
+            }
+            return new long[]{status, read};
+        } catch (IOException e) {
+            return new long[]{-1, 0};
+        }
+    }
+
+    private static void report(Map<Kind, LatencyStats> totals, double seconds) {
+        System.out.printf("%n%-9s %9s %8s %7s %9s %9s %9s %9s %9s %9s%n",
+                "type", "requests", "errors", "err%", "req/s", "MB/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        LatencyStats all = new LatencyStats();
+        for (Map.Entry<Kind, LatencyStats> entry : totals.entrySet()) {
+            print(entry.getKey().name().toLowerCase(), entry.getValue(), seconds);
+            all.merge(entry.getValue());
+        }
+        print("all", all, seconds);
+    }
+
+    private static void print(String name, LatencyStats stats, double seconds) {
+        System.out.printf("%-9s %9d %8d %7.2f %9.1f %9.2f %9.1f %9.1f %9.1f %9.1f%n", name,
+                stats.getCount(), stats.getErrors(), stats.getCount() == 0 ? 0 : 100.0 * stats.getErrors() / stats.getCount(),
+                stats.getCount() / seconds, stats.getBytes() / seconds / (1024 * 1024),
+                stats.percentile(50), stats.percentile(90), stats.percentile(99), stats.percentile(100));
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.forEach(paths::add);
+        }
+        Collections.reverse(paths);
+        for (Path p : paths) {
+            Files.deleteIfExists(p);
+        }
+    }
+}
@@ -3,17 +3,17 @@ package com.github.cimsbioko.sidecar;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent;
 import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
 import org.springframework.boot.context.embedded.MimeMappings;
 import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.context.ApplicationListener;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.event.ApplicationEventMulticaster;
-import org.springframework.context.event.SimpleApplicationEventMulticaster;
+import org.springframework.core.env.Environment;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.client.RestTemplate;
-import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
-import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
 import java.io.File;
 import java.util.concurrent.Executor;
@@ -22,10 +22,28 @@ import java.util.concurrent.Executor;
 @EnableScheduling
 public class Application {
 
-    static final String CACHED_FILES_PATH = "/WEB-INF/cached-files";
+    private static final String KEEP_ALIVE_MAX = "http.maxConnections";
 
     public static void main(String[] args) {
-        SpringApplication.run(Application.class, args);
+        SpringApplication app = new SpringApplication(Application.class);
+        app.addListeners(new ApplicationListener<ApplicationEnvironmentPreparedEvent>() {
+            @Override
+            public void onApplicationEvent(ApplicationEnvironmentPreparedEvent event) {
+                sizeKeepAliveCache(event.getEnvironment());
+            }
+        });
+        app.run(args);
+    }
+
+    /**
+     * Sizes the JDK's keep-alive cache to the upstream connection pool, unless the operator already has. Done once,
+     * before any connection is opened, since the cache reads it only when first used.
+     */
+    private static void sizeKeepAliveCache(Environment env) {
+        if (System.getProperty(KEEP_ALIVE_MAX) == null) {
+            int connections = Math.max(1, env.getProperty("app.http.connections", Integer.class, 1));
+            System.setProperty(KEEP_ALIVE_MAX, String.valueOf(connections));
+        }
     }
 
     @Value("${app.data.dir}")
@@ -38,26 +56,29 @@ public class Application {
     }
 
     @Bean
-    WebMvcConfigurerAdapter webMvcConfigurerAdapter() {
-        return new WebMvcConfigurerAdapter() {
-            @Override
-            public void addResourceHandlers(ResourceHandlerRegistry registry) {
-                registry.addResourceHandler(CACHED_FILES_PATH + "/**")
-                        .addResourceLocations(dataDir.toURI().toString());
-            }
-        };
+    public Executor eventTaskExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setMaxPoolSize(1);  // process non-campaign events serially
+        return executor;
     }
 
     @Bean
-    public Executor eventTaskExecutor() {
+    public Executor syncTaskExecutor(@Value("${app.sync.concurrency}") int concurrency) {
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setMaxPoolSize(1);  // process events serially
+        executor.setCorePoolSize(concurrency);  // campaigns syncing at once
+        executor.setMaxPoolSize(concurrency);
+        executor.setThreadNamePrefix("sync-");
         return executor;
     }
 
     @Bean
-    public ApplicationEventMulticaster applicationEventMulticaster() {
-        SimpleApplicationEventMulticaster multicaster = new SimpleApplicationEventMulticaster();
+    public CampaignLanes campaignLanes(@Value("${app.sync.concurrency}") int concurrency) {
+        return new CampaignLanes(syncTaskExecutor(concurrency), concurrency);
+    }
+
+    @Bean
+    public ApplicationEventMulticaster applicationEventMulticaster(@Value("${app.sync.concurrency}") int concurrency) {
+        CampaignEventMulticaster multicaster = new CampaignEventMulticaster(campaignLanes(concurrency));
         multicaster.setTaskExecutor(eventTaskExecutor());
         return multicaster;
     }
@@ -0,0 +1,159 @@
+package com.github.cimsbioko.sidecar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a body with non-blocking servlet output, so a slow client holds no thread while its connection drains.
+ * Container threads only run to move the next chunk from the file channel to the socket, and throttled transfers wait
+ * on a timer rather than a sleeping thread.
+ */
+class AsyncBodyWriter implements WriteListener, AsyncListener {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncBodyWriter.class);
+
+    private static final int CHUNK = 64 * 1024;
+
+    private final AsyncContext context;
+    private final ServletOutputStream out;
+    private final Body.Reader reader;
+    private final DownloadGate.Permit permit;
+    private final VersionStore.Lease lease;
+    private final DownloadGate.Throttle throttle;
+    private final ScheduledExecutorService timer;
+    private final Runnable onSuccess;
+    private final ByteBuffer buffer;
+
+    private boolean written, finished;
+
+    private AsyncBodyWriter(AsyncContext context, ServletOutputStream out, Body.Reader reader, DownloadGate.Permit permit,
+                            VersionStore.Lease lease, ScheduledExecutorService timer, Runnable onSuccess) {
+        this.context = context;
+        this.out = out;
+        this.reader = reader;
+        this.permit = permit;
+        this.lease = lease;
+        this.throttle = permit != null ? permit.throttle() : null;
+        this.timer = timer;
+        this.onSuccess = onSuccess;
+        this.buffer = ByteBuffer.allocate(throttle != null ? DownloadGate.Throttle.CHUNK : CHUNK);
+        buffer.flip();
+    }
+
+    /**
+     * Starts writing the body asynchronously and returns. The permit and lease, if any, are held until the transfer
+     * ends.
+     */
+    static void start(Body body, DownloadGate.Permit permit, VersionStore.Lease lease, HttpServletRequest request,
+                      HttpServletResponse response, ScheduledExecutorService timer, Runnable onSuccess) throws IOException {
+        Body.Reader reader = body.open();
+        AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(0);  // stalled clients are cut off by the connector's write timeout instead
+        AsyncBodyWriter writer = new AsyncBodyWriter(context, response.getOutputStream(), reader,
+                permit != null ? permit.share() : null, lease != null ? lease.share() : null, timer, onSuccess);
+        context.addListener(writer);
+        writer.out.setWriteListener(writer);
+    }
+
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        while (out.isReady()) {
+            if (!buffer.hasRemaining() && !fill()) {
+                written = true;
+                context.complete();
+                return;
+            }
+            if (throttle != null) {
+                long wait = throttle.take(buffer.remaining());
+                if (wait > 0) {
+                    timer.schedule(this::resume, wait, TimeUnit.NANOSECONDS);
+                    return;
+                }
+            }
+            out.write(buffer.array(), buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        }
+    }
+
+    private void resume() {
+        try {
+            context.start(() -> {
+                try {
+                    onWritePossible();
+                } catch (IOException e) {
+                    onError(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            log.debug("transfer ended while throttled", e);
+        }
+    }
+
+    private boolean fill() throws IOException {
+        buffer.clear();
+        int read = 0;
+        while (buffer.hasRemaining() && read >= 0) {
+            read = reader.read(buffer);
+        }
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        log.debug("transfer failed", t);
+        context.complete();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        finish();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        context.complete();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        finish();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private synchronized void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            reader.close();
+        } catch (IOException e) {
+            log.warn("failed to close transfer", e);
+        }
+        if (permit != null) {
+            permit.close();
+        }
+        if (lease != null) {
+            lease.close();
+        }
+        if (written) {
+            onSuccess.run();
+        }
+    }
+}
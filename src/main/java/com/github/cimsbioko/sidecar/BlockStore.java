@@ -0,0 +1,336 @@
+package com.github.cimsbioko.sidecar;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.batkinson.jrsync.BlockDesc;
+import com.github.batkinson.jrsync.Metadata;
+import com.github.cimsbioko.sidecar.events.CampaignRemoved;
+import com.github.cimsbioko.sidecar.events.ContentReady;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.Files.createTempFile;
+import static org.apache.commons.codec.binary.Hex.encodeHexString;
+
+/**
+ * An index of every block held locally, keyed by strong checksum, across all campaigns' installed content and their
+ * retained versions. Installed content is indexed for free from its verified metadata; anything else is hashed the
+ * first time a sync needs its block size. Syncs use it to seed ZSync with matching blocks from anywhere on disk, so
+ * only blocks that exist nowhere locally are fetched upstream.
+ */
+@Component
+public class BlockStore {
+
+    private static final Logger log = LoggerFactory.getLogger(BlockStore.class);
+
+    private static final String REUSED_BYTES_METRIC = "meter.store.reused";
+
+    @Autowired
+    private FileSystem fs;
+
+    @Autowired
+    private MetricRegistry metrics;
+
+    @Autowired
+    private DiskBudget disk;
+
+    @Value("${app.data.dir}")
+    private Path dataDir;
+
+    @Value("${app.sync.seed-min-reuse}")
+    private double seedMinReuse;
+
+    private final Map<File, Source> sources = new ConcurrentHashMap<>();
+
+    public boolean isEmpty() {
+        return sources.isEmpty();
+    }
+
+    @EventListener
+    public void onContentReady(ContentReady event) {
+        Content content = event.getContent();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(content.getMetadataFile()))) {
+            Metadata metadata = Metadata.read(in);
+            register(content.getContentFile(), metadata);
+            File installed = fs.getContent(event.getCampaign());
+            if (installed.exists()) {
+                register(installed, metadata);
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            log.warn("failed to index content " + content.getContentFile(), e);
+        }
+    }
+
+    @EventListener
+    public void onCampaignRemoved(CampaignRemoved event) {
+        Campaign campaign = event.getCampaign();
+        Path versions = fs.getVersionDir(campaign);
+        sources.keySet().removeIf(f -> f.equals(fs.getContent(campaign)) || f.toPath().startsWith(versions));
+    }
+
+    private void register(File file, Metadata metadata) {
+        Map<String, Long> offsets = new HashMap<>();
+        for (BlockDesc desc : metadata.getBlockDescs()) {
+            offsets.putIfAbsent(encodeHexString(desc.getCryptoHash()), desc.getBlockIndex() * metadata.getBlockSize());
+        }
+        sources.put(file, new Source(file, metadata.getChecksumAlg(), metadata.getBlockSize(), offsets));
+    }
+
+    /**
+     * Writes a ZSync seed for the campaign: its installed content, followed by the target's missing blocks taken from
+     * the given partial transfer (if any) and then from any other local source. Returns null when there is nothing
+     * to add to the installed content, or when other content would add too little to be worth rewriting all of it.
+     */
+    public Path buildSeed(Campaign campaign, Metadata target, File partial) throws IOException, NoSuchAlgorithmException {
+        String alg = target.getChecksumAlg();
+        int blockSize = target.getBlockSize();
+        File content = fs.getContent(campaign);
+        indexSources(alg, blockSize);
+
+        Source base = sources.get(content);
+        Map<String, BlockDesc> missing = new LinkedHashMap<>();
+        for (BlockDesc desc : target.getBlockDescs()) {
+            String hash = encodeHexString(desc.getCryptoHash());
+            if (base == null || !base.matches(alg, blockSize) || !base.offsets.containsKey(hash)) {
+                missing.putIfAbsent(hash, desc);
+            }
+        }
+
+        boolean partialUsable = partial != null && partial.exists();
+        if (content.exists() && !partialUsable) {
+            // the seed rewrites the whole installed database, so on flash it has to save a fair share of that
+            long held = missing.keySet().stream().filter(this::isHeld).count() * blockSize;
+            if (held == 0 || held < content.length() * seedMinReuse) {
+                if (held > 0) {
+                    log.info("not seeding sync {} ({}): {} bytes from other content not worth copying {} installed",
+                            campaign.getUuid(), campaign.getName(), held, content.length());
+                }
+                return null;
+            }
+        }
+
+        long seedBound = content.length() + Math.min(target.getFileSize(), (long) missing.size() * blockSize);
+        disk.require(seedBound + target.getFileSize() * 2, "sync seed");  // the seed, then the new database and its copy
+        Path seed = createTempFile(content.toPath().getParent(), "seed-", ".db");
+        int fromPartial = 0, fromStore = 0;
+        long reused = 0;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(seed.toFile()), 65536)) {
+            if (content.exists()) {
+                Files.copy(content.toPath(), out);
+            }
+            if (partialUsable) {
+                fromPartial = copyVerifiedBlocks(partial, target, missing.keySet(), out);
+            }
+            byte[] block = new byte[blockSize];
+            MessageDigest digest = MessageDigest.getInstance(alg);
+            for (Iterator<Map.Entry<String, BlockDesc>> i = missing.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry<String, BlockDesc> entry = i.next();
+                int length = (int) Math.min(blockSize, target.getFileSize() - entry.getValue().getBlockIndex() * blockSize);
+                if (length > 0 && read(entry.getKey(), alg, blockSize, block, length, digest)) {
+                    out.write(block, 0, length);
+                    reused += length;
+                    fromStore++;
+                    i.remove();
+                }
+            }
+        }
+        metrics.meter(REUSED_BYTES_METRIC).mark(reused);
+        if (fromPartial + fromStore == 0 && content.exists()) {
+            Files.deleteIfExists(seed);
+            return null;
+        }
+        log.info("seeded sync {} ({}) with {} blocks from partial transfer and {} from other content, {} of {} still missing",
+                campaign.getUuid(), campaign.getName(), fromPartial, fromStore, missing.size(), target.getBlockDescs().size());
+        return seed;
+    }
+
+    /**
+     * Returns the indexes of the target's blocks held neither anywhere locally nor in the given partial transfer (if
+     * any), which a sync would have to fetch upstream.
+     */
+    public BitSet findMissing(Metadata target, File partial) throws IOException, NoSuchAlgorithmException {
+        String alg = target.getChecksumAlg();
+        int blockSize = target.getBlockSize();
+        indexSources(alg, blockSize);
+        Set<String> missing = new HashSet<>();
+        for (BlockDesc desc : target.getBlockDescs()) {
+            String hash = encodeHexString(desc.getCryptoHash());
+            if (sources.values().stream().noneMatch(s -> s.matches(alg, blockSize) && s.offsets.containsKey(hash))) {
+                missing.add(hash);
+            }
+        }
+        if (partial != null && partial.exists() && !missing.isEmpty()) {
+            copyVerifiedBlocks(partial, target, missing, new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            });
+        }
+        BitSet result = new BitSet();
+        for (BlockDesc desc : target.getBlockDescs()) {
+            if (missing.contains(encodeHexString(desc.getCryptoHash()))) {
+                result.set((int) desc.getBlockIndex());
+            }
+        }
+        return result;
+    }
+
+    private boolean isHeld(String hash) {
+        return sources.values().stream().anyMatch(s -> s.offsets.containsKey(hash));
+    }
+
+    /**
+     * Reads a block with the given hash from the first source that still holds it.
+     */
+    private boolean read(String hash, String alg, int blockSize, byte[] block, int length, MessageDigest digest) {
+        for (Source source : sources.values()) {
+            Long offset = source.matches(alg, blockSize) ? source.offsets.get(hash) : null;
+            if (offset == null || !source.isCurrent()) {
+                continue;
+            }
+            try (RandomAccessFile in = new RandomAccessFile(source.file, "r")) {
+                if (offset + length > in.length()) {
+                    continue;
+                }
+                in.seek(offset);
+                in.readFully(block, 0, length);
+                digest.update(block, 0, length);
+                if (encodeHexString(digest.digest()).equals(hash)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                log.debug("failed to read block from {}", source.file, e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hashes any local database not already indexed at the given block size, such as versions retained before a
+     * restart or content indexed at another block size.
+     */
+    private synchronized void indexSources(String alg, int blockSize) throws IOException, NoSuchAlgorithmException {
+        List<File> candidates = new ArrayList<>();
+        list(dataDir, candidates);
+        Path versions = fs.getVersionsDir();
+        if (Files.isDirectory(versions)) {
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(versions)) {
+                for (Path dir : dirs) {
+                    list(dir, candidates);
+                }
+            }
+        }
+        sources.keySet().removeIf(f -> !f.exists());
+        for (File file : candidates) {
+            Source existing = sources.get(file);
+            if (existing == null || !existing.isCurrent() || !existing.matches(alg, blockSize)) {
+                sources.put(file, hash(file, alg, blockSize));
+            }
+        }
+    }
+
+    private static void list(Path dir, List<File> result) throws IOException {
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*.db")) {
+                for (Path entry : entries) {
+                    if (!entry.getFileName().toString().startsWith("database-") && !entry.getFileName().toString().startsWith("seed-")) {
+                        result.add(entry.toFile());
+                    }
+                }
+            }
+        }
+    }
+
+    private static Source hash(File file, String alg, int blockSize) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(alg);
+        Map<String, Long> offsets = new HashMap<>();
+        byte[] block = new byte[blockSize];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 65536)) {
+            long offset = 0;
+            int length;
+            while ((length = readBlock(in, block)) > 0) {
+                digest.update(block, 0, length);
+                offsets.putIfAbsent(encodeHexString(digest.digest()), offset);
+                offset += length;
+            }
+        }
+        log.info("indexed {} blocks of {}", offsets.size(), file);
+        return new Source(file, alg, blockSize, offsets);
+    }
+
+    private static int readBlock(InputStream in, byte[] block) throws IOException {
+        int total = 0, read;
+        while (total < block.length && (read = in.read(block, total, block.length - total)) >= 0) {
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Counts the blocks of the file that match the metadata at their final position, copying those whose hash is in
+     * wanted (and removing them from it) to out, if given.
+     */
+    static int copyVerifiedBlocks(File file, Metadata metadata, Set<String> wanted, OutputStream out) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(metadata.getChecksumAlg());
+        int blockSize = metadata.getBlockSize(), verified = 0;
+        byte[] block = new byte[blockSize];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long available = in.length();
+            for (BlockDesc desc : metadata.getBlockDescs()) {
+                long offset = desc.getBlockIndex() * blockSize;
+                int length = (int) Math.min(blockSize, metadata.getFileSize() - offset);
+                if (length <= 0 || offset + length > available) {
+                    continue;
+                }
+                in.seek(offset);
+                in.readFully(block, 0, length);
+                digest.update(block, 0, length);
+                if (Arrays.equals(digest.digest(), desc.getCryptoHash())) {
+                    verified++;
+                    if (out != null && wanted.remove(encodeHexString(desc.getCryptoHash()))) {
+                        out.write(block, 0, length);
+                    }
+                }
+            }
+        }
+        return verified;
+    }
+
+    private static class Source {
+
+        final File file;
+        final String alg;
+        final int blockSize;
+        final long size, modified;
+        final Map<String, Long> offsets;
+
+        Source(File file, String alg, int blockSize, Map<String, Long> offsets) {
+            this.file = file;
+            this.alg = alg;
+            this.blockSize = blockSize;
+            this.size = file.length();
+            this.modified = file.lastModified();
+            this.offsets = offsets;
+        }
+
+        boolean matches(String alg, int blockSize) {
+            return this.blockSize == blockSize && this.alg.equalsIgnoreCase(alg);
+        }
+
+        boolean isCurrent() {
+            return file.length() == size && file.lastModified() == modified;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.github.cimsbioko.sidecar;
+
+import org.apache.catalina.connector.CoyoteOutputStream;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.channels.Channels.newChannel;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A response body made of in-memory bytes, buffers and regions of files, so composed responses (such as an export
+ * archive wrapped around stored compressed data) can be served and ranged without materializing them.
+ */
+public class Body {
+
+    private final List<Segment> segments;
+    private final long length;
+
+    private Body(List<Segment> segments) {
+        this.segments = Collections.unmodifiableList(segments);
+        this.length = segments.stream().mapToLong(s -> s.length).sum();
+    }
+
+    public static Body of(File file) {
+        return new Builder().add(file, 0, file.length()).build();
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns the part of this body in [start, end).
+     */
+    public Body slice(long start, long end) {
+        List<Segment> sliced = new ArrayList<>();
+        long position = 0;
+        for (Segment s : segments) {
+            long from = Math.max(start, position), to = Math.min(end, position + s.length);
+            if (from < to) {
+                sliced.add(s.slice(from - position, to - from));
+            }
+            position += s.length;
+        }
+        return new Body(sliced);
+    }
+
+    /**
+     * Returns the only segment if this body is a single file region, otherwise null.
+     */
+    public Segment getFileRegion() {
+        return segments.size() == 1 && segments.get(0).file != null ? segments.get(0) : null;
+    }
+
+    /**
+     * Returns whether the body is held entirely in memory, such as a cached entry, so writing it never reads a file.
+     */
+    public boolean isInMemory() {
+        return segments.stream().allMatch(s -> s.file == null);
+    }
+
+    /**
+     * Writes the body out, keeping a file open across consecutive regions of it so many small ranges of one file
+     * cost a single open.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        WritableByteChannel channel = null;
+        FileChannel in = null;
+        File open = null;
+        try {
+            for (Segment s : segments) {
+                if (s.buffer != null) {
+                    ByteBuffer view = s.buffer.duplicate();
+                    view.limit((int) (s.offset + s.length)).position((int) s.offset);
+                    if (out instanceof CoyoteOutputStream) {
+                        // hands direct buffers to the connector without copying them onto the heap
+                        ((CoyoteOutputStream) out).write(view);
+                    } else {
+                        if (channel == null) {
+                            channel = newChannel(out);
+                        }
+                        while (view.hasRemaining()) {
+                            channel.write(view);
+                        }
+                    }
+                } else if (s.file == null) {
+                    out.write(s.bytes, (int) s.offset, (int) s.length);
+                } else {
+                    if (channel == null) {
+                        channel = newChannel(out);
+                    }
+                    if (!s.file.equals(open)) {
+                        if (in != null) {
+                            in.close();
+                        }
+                        in = FileChannel.open(s.file.toPath(), READ);
+                        open = s.file;
+                    }
+                    long position = s.offset, end = s.offset + s.length;
+                    while (position < end) {
+                        position += in.transferTo(position, end - position, channel);
+                    }
+                }
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Opens the body for reading in pieces. Its files are opened now, so they stay readable however long the reader
+     * takes to get to them.
+     */
+    public Reader open() throws IOException {
+        Reader reader = new Reader();
+        try {
+            for (Segment s : segments) {
+                if (s.file != null && !reader.channels.containsKey(s.file)) {
+                    reader.channels.put(s.file, FileChannel.open(s.file.toPath(), READ));
+                }
+            }
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    public class Reader implements Closeable {
+
+        private final Map<File, FileChannel> channels = new HashMap<>();
+        private int index;
+        private long position;  // within the current segment
+
+        private Reader() {
+        }
+
+        /**
+         * Reads the next bytes of the body into dst, returning how many were read or -1 at the end of the body.
+         */
+        public int read(ByteBuffer dst) throws IOException {
+            while (index < segments.size()) {
+                Segment s = segments.get(index);
+                int n = (int) Math.min(s.length - position, dst.remaining());
+                if (s.length == position) {
+                    index++;
+                    position = 0;
+                    continue;
+                } else if (s.buffer != null) {
+                    ByteBuffer view = s.buffer.duplicate();
+                    view.limit((int) (s.offset + position + n)).position((int) (s.offset + position));
+                    dst.put(view);
+                } else if (s.file == null) {
+                    dst.put(s.bytes, (int) (s.offset + position), n);
+                } else {
+                    ByteBuffer view = dst.duplicate();
+                    view.limit(view.position() + n);
+                    n = channels.get(s.file).read(view, s.offset + position);
+                    if (n < 0) {
+                        throw new EOFException("file shorter than expected: " + s.file);
+                    }
+                    dst.position(view.position());
+                }
+                position += n;
+                return n;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (FileChannel channel : channels.values()) {
+                channel.close();
+            }
+        }
+    }
+
+    public static class Segment {
+
+        private final byte[] bytes;
+        private final ByteBuffer buffer;
+        private final File file;
+        private final long offset, length;
+
+        private Segment(byte[] bytes, ByteBuffer buffer, File file, long offset, long length) {
+            this.bytes = bytes;
+            this.buffer = buffer;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private Segment slice(long relativeOffset, long sliceLength) {
+            return new Segment(bytes, buffer, file, offset + relativeOffset, sliceLength);
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    public static class Builder {
+
+        private final List<Segment> segments = new ArrayList<>();
+
+        public Builder add(byte[] bytes) {
+            segments.add(new Segment(bytes, null, null, 0, bytes.length));
+            return this;
+        }
+
+        /**
+         * Adds the buffer's contents from position to limit. The buffer is shared, not copied, so it must not change.
+         */
+        public Builder add(ByteBuffer buffer) {
+            segments.add(new Segment(null, buffer, null, buffer.position(), buffer.remaining()));
+            return this;
+        }
+
+        public Builder add(Body body) {
+            segments.addAll(body.segments);
+            return this;
+        }
+
+        public Builder add(File file, long offset, long length) {
+            segments.add(new Segment(null, null, file, offset, length));
+            return this;
+        }
+
+        public Body build() {
+            return new Body(new ArrayList<>(segments));
+        }
+    }
+}
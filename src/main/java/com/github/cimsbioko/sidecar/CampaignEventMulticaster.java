@@ -0,0 +1,44 @@
+package com.github.cimsbioko.sidecar;
+
+import com.github.cimsbioko.sidecar.events.CampaignEvent;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.PayloadApplicationEvent;
+import org.springframework.context.event.SimpleApplicationEventMulticaster;
+import org.springframework.core.ResolvableType;
+
+/**
+ * Dispatches {@link CampaignEvent}s on their campaign's lane, so a campaign's sync steps stay in order without
+ * holding up other campaigns. All other events run on the serial task executor.
+ */
+public class CampaignEventMulticaster extends SimpleApplicationEventMulticaster {
+
+    private final CampaignLanes lanes;
+
+    public CampaignEventMulticaster(CampaignLanes lanes) {
+        this.lanes = lanes;
+    }
+
+    @Override
+    public void multicastEvent(ApplicationEvent event, ResolvableType eventType) {
+        ResolvableType type = eventType != null ? eventType : ResolvableType.forInstance(event);
+        Campaign campaign = getCampaign(event);
+        for (ApplicationListener<?> listener : getApplicationListeners(event, type)) {
+            if (campaign != null) {
+                lanes.execute(campaign, () -> invokeListener(listener, event));
+            } else {
+                getTaskExecutor().execute(() -> invokeListener(listener, event));
+            }
+        }
+    }
+
+    private static Campaign getCampaign(ApplicationEvent event) {
+        if (event instanceof PayloadApplicationEvent) {
+            Object payload = ((PayloadApplicationEvent<?>) event).getPayload();
+            if (payload instanceof CampaignEvent) {
+                return ((CampaignEvent) payload).getCampaign();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.cimsbioko.sidecar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Runs tasks for the same campaign strictly in submission order while letting different campaigns run in parallel,
+ * up to the given concurrency. When campaigns are waiting for a turn, the one with the highest priority goes next.
+ */
+public class CampaignLanes {
+
+    private static final Logger log = LoggerFactory.getLogger(CampaignLanes.class);
+
+    private final Executor executor;
+    private final int concurrency;
+    private final Map<Campaign, Lane> lanes = new HashMap<>();
+    private final List<Lane> waiting = new ArrayList<>();
+    private int running;
+
+    private volatile ToDoubleFunction<Campaign> priority = campaign -> 0;
+
+    public CampaignLanes(Executor executor, int concurrency) {
+        this.executor = executor;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    public void setPriority(ToDoubleFunction<Campaign> priority) {
+        this.priority = priority;
+    }
+
+    public void execute(Campaign campaign, Runnable task) {
+        synchronized (lanes) {
+            Lane lane = lanes.computeIfAbsent(campaign, Lane::new);
+            lane.tasks.add(task);
+            if (!lane.scheduled) {
+                lane.scheduled = true;
+                if (running < concurrency) {
+                    running++;
+                    executor.execute(lane);
+                } else {
+                    waiting.add(lane);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the waiting lane with the highest priority, earliest first among equals, in place of one that finished.
+     */
+    private void startNext() {
+        Lane next = null;
+        double best = 0;
+        for (Lane lane : waiting) {
+            double p = priority.applyAsDouble(lane.campaign);
+            if (next == null || p > best) {
+                next = lane;
+                best = p;
+            }
+        }
+        if (next != null) {
+            waiting.remove(next);
+            executor.execute(next);
+        } else {
+            running--;
+        }
+    }
+
+    private class Lane implements Runnable {
+
+        private final Campaign campaign;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled;
+
+        Lane(Campaign campaign) {
+            this.campaign = campaign;
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            while ((task = next()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("task failed for " + campaign, e);
+                }
+            }
+        }
+
+        private Runnable next() {
+            synchronized (lanes) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    scheduled = false;
+                    lanes.remove(campaign);
+                    startNext();
+                }
+                return task;
+            }
+        }
+    }
+}
@@ -36,7 +36,15 @@ public class CampaignService {
     @Value("${app.mycampaigns.url}")
     private URI downloadUri;
 
-    private Map<String, Campaign> campaigns = unmodifiableMap(emptyMap());
+    @Value("${app.mycampaigns.interval}")
+    private long interval;
+
+    @Value("${app.poll.jitter}")
+    private double jitter;
+
+    private volatile long nextUpdate;
+
+    private volatile Map<String, Campaign> campaigns = unmodifiableMap(emptyMap());
 
     public CampaignService(RestTemplate rest) {
         this.rest = rest;
@@ -46,8 +54,19 @@ public class CampaignService {
         return Arrays.asList(rest.getForEntity(downloadUri, Campaign[].class).getBody());
     }
 
-    @Scheduled(fixedDelay = 60 * 60 * 1000, initialDelay = 20 * 60 * 1000)
-    public void updateCampaigns() {
+    /**
+     * Refreshes campaigns once the interval has passed. Starts after the first tick, leaving the initial fetch to
+     * {@link #onApplicationReady}.
+     */
+    @Scheduled(initialDelay = 60 * 1000, fixedDelay = 60 * 1000)
+    public void pollCampaigns() {
+        if (System.currentTimeMillis() >= nextUpdate) {
+            updateCampaigns();
+        }
+    }
+
+    public synchronized void updateCampaigns() {
+        nextUpdate = System.currentTimeMillis() + PollSchedule.jitter(interval, jitter);
         List<Campaign> fetched = fetchCampaigns();
         Map<String, Campaign> oldCampaigns = campaigns,
                 newCampaigns = fetched.stream().collect(Collectors.toMap(Campaign::getUuid, Function.identity()));
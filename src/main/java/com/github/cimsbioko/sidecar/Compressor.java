@@ -0,0 +1,146 @@
+package com.github.cimsbioko.sidecar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Produces gzip files by deflating fixed-size blocks in parallel, pigz-style. Each block is primed with the tail of
+ * the block before it and sync-flushed, so the concatenated output is a single valid deflate stream.
+ */
+@Component
+public class Compressor {
+
+    private static final Logger log = LoggerFactory.getLogger(Compressor.class);
+
+    private static final int DICT_SIZE = 32 * 1024;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    static final int BLOCK_SIZE = 128 * 1024, GZIP_HEADER_SIZE = GZIP_HEADER.length, GZIP_TRAILER_SIZE = 8;
+
+    private final int threads;
+    private final ExecutorService executor;
+
+    public Compressor(@Value("${app.compression.threads}") int threads) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.executor = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "compressor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void compress(File source, File target) throws IOException {
+        compress(source, target, null);
+    }
+
+    /**
+     * Compresses source to target, also feeding every byte read to the given digest (if any) so callers can verify
+     * the source without reading it a second time.
+     */
+    public void compress(File source, File target, MessageDigest digest) throws IOException {
+        long start = System.currentTimeMillis();
+        try (FileChannel in = FileChannel.open(source.toPath(), READ);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target), BLOCK_SIZE)) {
+            out.write(GZIP_HEADER);
+            CRC32 crc = new CRC32();
+            Deque<Future<byte[]>> pending = new ArrayDeque<>();
+            long size = in.size(), position = 0;
+            byte[] previous = null;
+            do {
+                while (position < size && pending.size() < threads * 2) {
+                    byte[] block = read(in, position, (int) Math.min(BLOCK_SIZE, size - position));
+                    position += block.length;
+                    crc.update(block);
+                    if (digest != null) {
+                        digest.update(block);
+                    }
+                    byte[] dict = previous == null ? null : Arrays.copyOfRange(previous, Math.max(0, previous.length - DICT_SIZE), previous.length);
+                    boolean last = position >= size;
+                    pending.add(executor.submit(() -> deflate(block, dict, last)));
+                    previous = block;
+                }
+                if (pending.isEmpty()) {
+                    out.write(deflate(new byte[0], null, true));  // empty source
+                } else {
+                    out.write(pending.remove().get());
+                }
+            } while (!pending.isEmpty());
+            writeInt(out, (int) crc.getValue());
+            writeInt(out, (int) size);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("compression interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("compression failed", e.getCause());
+        }
+        log.info("compressed {} to {} in {}ms", source.getName(), target.getName(), System.currentTimeMillis() - start);
+    }
+
+    private static byte[] read(FileChannel in, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (in.read(buf, position + buf.position()) < 0) {
+                throw new EOFException("source truncated during compression");
+            }
+        }
+        return buf.array();
+    }
+
+    private static byte[] deflate(byte[] block, byte[] dict, boolean last) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict);
+            }
+            deflater.setInput(block);
+            ByteArrayOutputStream result = new ByteArrayOutputStream(block.length / 2 + 64);
+            byte[] buf = new byte[16 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    result.write(buf, 0, deflater.deflate(buf));
+                }
+            } else {
+                int count;
+                do {
+                    count = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    result.write(buf, 0, count);
+                } while (count == buf.length || !deflater.needsInput());
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -7,11 +7,18 @@ public class Content {
 
     private final String contentHash;
     private final File content, metadata;
+    private final File compressedContent, compressedMetadata;
 
     Content(String contentHash, File content, File metadata) {
+        this(contentHash, content, metadata, null, null);
+    }
+
+    Content(String contentHash, File content, File metadata, File compressedContent, File compressedMetadata) {
         this.contentHash = contentHash;
         this.content = content;
         this.metadata = metadata;
+        this.compressedContent = compressedContent;
+        this.compressedMetadata = compressedMetadata;
     }
 
     public String getContentHash() {
@@ -26,6 +33,14 @@ public class Content {
         return content;
     }
 
+    public File getCompressedMetadataFile() {
+        return compressedMetadata;
+    }
+
+    public File getCompressedContentFile() {
+        return compressedContent;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
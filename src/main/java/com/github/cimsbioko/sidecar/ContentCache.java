@@ -0,0 +1,143 @@
+package com.github.cimsbioko.sidecar;
+
+import com.github.cimsbioko.sidecar.events.CampaignRemoved;
+import com.github.cimsbioko.sidecar.events.ContentReady;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Holds each campaign's current metadata, and its database when small enough, in direct buffers so they are served
+ * from memory without touching the disk or the heap. Entries are loaded as content is published and evicted least
+ * recently used first to stay within the memory budget.
+ */
+@Component
+public class ContentCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ContentCache.class);
+
+    private static final String HITS_METRIC = "cache.hits";
+    private static final String MISSES_METRIC = "cache.misses";
+    private static final String SIZE_METRIC = "gauge.cache.bytes";
+
+    @Autowired
+    private CounterService counters;
+
+    @Autowired
+    private GaugeService gauges;
+
+    @Value("${app.cache.size}")
+    private long budget;
+
+    @Value("${app.cache.max-file}")
+    private long maxFileSize;
+
+    private final Map<File, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<Campaign, List<File>> loaded = new ConcurrentHashMap<>();
+
+    private long size;
+
+    /**
+     * Returns the file's contents as a body, from memory if cached.
+     */
+    public Body get(File file) {
+        ByteBuffer buffer = budget > 0 ? lookup(file) : null;
+        if (buffer == null) {
+            counters.increment(MISSES_METRIC);
+            return Body.of(file);
+        }
+        counters.increment(HITS_METRIC);
+        return new Body.Builder().add(buffer.duplicate()).build();
+    }
+
+    private synchronized ByteBuffer lookup(File file) {
+        return entries.get(file);
+    }
+
+    @EventListener
+    public void onContentReady(ContentReady event) {
+        if (budget <= 0) {
+            return;
+        }
+        Content content = event.getContent();
+        List<File> files = new ArrayList<>();
+        files.add(content.getMetadataFile());
+        files.add(content.getCompressedMetadataFile());
+        files.add(content.getContentFile());
+        files.add(content.getCompressedContentFile());
+        files.removeIf(f -> f == null || !f.exists() || f.length() > maxFileSize);
+        evict(event.getCampaign());
+        for (File file : files) {
+            try {
+                put(file, load(file));
+            } catch (IOException e) {
+                log.warn("failed to cache " + file, e);
+            }
+        }
+        loaded.put(event.getCampaign(), files);
+    }
+
+    @EventListener
+    public void onCampaignRemoved(CampaignRemoved event) {
+        evict(event.getCampaign());
+    }
+
+    private void evict(Campaign campaign) {
+        List<File> previous = loaded.remove(campaign);
+        if (previous != null) {
+            synchronized (this) {
+                previous.forEach(this::remove);
+                gauges.submit(SIZE_METRIC, size);
+            }
+        }
+    }
+
+    private synchronized void put(File file, ByteBuffer buffer) {
+        remove(file);
+        entries.put(file, buffer);
+        size += buffer.capacity();
+        for (Iterator<Map.Entry<File, ByteBuffer>> i = entries.entrySet().iterator(); size > budget && i.hasNext(); ) {
+            Map.Entry<File, ByteBuffer> eldest = i.next();
+            log.debug("evicting {}", eldest.getKey());
+            size -= eldest.getValue().capacity();
+            i.remove();
+        }
+        gauges.submit(SIZE_METRIC, size);
+    }
+
+    private void remove(File file) {
+        ByteBuffer removed = entries.remove(file);
+        if (removed != null) {
+            size -= removed.capacity();
+        }
+    }
+
+    private static ByteBuffer load(File file) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) in.size());
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer) < 0) {
+                    throw new EOFException("truncated while caching " + file);
+                }
+            }
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.cimsbioko.sidecar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds requests for campaigns without content until content is published, rather than having tablets poll for it.
+ * Held requests take no thread, and are dispatched again once released (or when their wait runs out) to be answered
+ * as usual.
+ */
+@Component
+public class ContentHolds {
+
+    private static final Logger log = LoggerFactory.getLogger(ContentHolds.class);
+
+    private static final String HELD_ATTR = ContentHolds.class.getName() + ".held";
+    private static final String EXPIRED_METRIC = "holds.expired";
+    private static final String REFUSED_METRIC = "holds.refused";
+
+    @Autowired
+    private CounterService counters;
+
+    @Value("${app.hold.max-wait}")
+    private long maxWait;
+
+    @Value("${app.hold.max-held}")
+    private int maxHeld;
+
+    private final Map<Campaign, Set<AsyncContext>> held = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Holds the request until content for the campaign is released, returning false if holding is disabled, full or
+     * the request has been held already.
+     */
+    public boolean hold(Campaign campaign, HttpServletRequest request, HttpServletResponse response) {
+        if (maxWait <= 0 || !request.isAsyncSupported() || request.getAttribute(HELD_ATTR) != null) {
+            return false;
+        }
+        if (count.incrementAndGet() > maxHeld) {
+            count.decrementAndGet();
+            counters.increment(REFUSED_METRIC);
+            return false;
+        }
+        request.setAttribute(HELD_ATTR, Boolean.TRUE);
+        AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(maxWait);
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                remove(campaign, context);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                counters.increment(EXPIRED_METRIC);
+                dispatch(campaign, context);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                remove(campaign, context);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        held.computeIfAbsent(campaign, c -> ConcurrentHashMap.newKeySet()).add(context);
+        return true;
+    }
+
+    /**
+     * Dispatches all requests held for the campaign again, to be answered with whatever content it now has.
+     */
+    public void release(Campaign campaign) {
+        Set<AsyncContext> contexts = held.get(campaign);
+        if (contexts != null) {
+            for (AsyncContext context : contexts) {
+                dispatch(campaign, context);
+            }
+        }
+    }
+
+    private void dispatch(Campaign campaign, AsyncContext context) {
+        if (remove(campaign, context)) {
+            try {
+                context.dispatch();
+            } catch (IllegalStateException e) {
+                log.debug("held request already ended", e);
+            }
+        }
+    }
+
+    private boolean remove(Campaign campaign, AsyncContext context) {
+        Set<AsyncContext> contexts = held.get(campaign);
+        if (contexts != null && contexts.remove(context)) {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public int getHeld() {
+        return count.get();
+    }
+}
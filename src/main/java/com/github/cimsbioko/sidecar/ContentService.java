@@ -1,42 +1,54 @@
 package com.github.cimsbioko.sidecar;
 
+import com.codahale.metrics.MetricRegistry;
 import com.github.batkinson.jrsync.Metadata;
 import com.github.batkinson.jrsync.MetadataInputWrapper;
+import com.github.batkinson.jrsync.zsync.RangeRequestFactory;
 import com.github.batkinson.jrsync.zsync.ZSync;
 import com.github.cimsbioko.sidecar.events.*;
+import com.github.cimsbioko.sidecar.http.ConnectionPool;
+import com.github.cimsbioko.sidecar.http.PooledRequestFactory;
 import com.github.cimsbioko.sidecar.http.Request;
 import com.github.cimsbioko.sidecar.http.RequestFactory;
+import org.apache.commons.codec.DecoderException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import javax.jmdns.ServiceInfo;
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+import static com.github.cimsbioko.sidecar.BlockStore.copyVerifiedBlocks;
+import static com.github.cimsbioko.sidecar.TransferJournal.Mode.FULL;
+import static com.github.cimsbioko.sidecar.TransferJournal.Mode.SYNC;
 import static java.nio.file.Files.createTempFile;
 import static java.nio.file.Files.deleteIfExists;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
 import static javax.servlet.http.HttpServletResponse.SC_OK;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.commons.codec.binary.Base64.encodeBase64String;
+import static org.apache.commons.codec.binary.Hex.decodeHex;
 import static org.apache.commons.codec.binary.Hex.encodeHexString;
 
 @Component
@@ -50,11 +62,29 @@ public class ContentService {
     private static final String UPDATE_FAILURES_METRIC = "updates.failed";
     private static final String UPDATE_NO_CHANGE_METRIC = "updates.nochange";
     private static final String UPDATE_IGNORED_METRIC = "updates.ignored";
+    private static final String UPDATE_COALESCED_METRIC = "updates.coalesced";
+    private static final String COMPRESS_FAILURES_METRIC = "updates.compressed";
+    private static final String VERIFY_TRUSTED_METRIC = "verifications.trusted";
+    private static final String AUDIT_FAILURES_METRIC = "verifications.audit";
+    private static final String REQUEST_TIMER = "timer.sync.request";
+    private static final String METADATA_TIMER = "timer.sync.metadata";
+    private static final String DATABASE_TIMER = "timer.sync.database";
+    private static final String ZSYNC_TIMER = "timer.sync.zsync";
+    private static final String COMPRESS_TIMER = "timer.sync.compress";
+    private static final String HASH_TIMER = "timer.sync.hash";
+    private static final String INSTALL_TIMER = "timer.sync.install";
+    private static final String UPSTREAM_BYTES_METRIC = "meter.upstream.bytes";
+    private static final String UPSTREAM_THROUGHPUT_METRIC = "gauge.upstream.throughput";
 
     private static final Logger log = LoggerFactory.getLogger(ContentService.class);
 
     private static final String METADATA_MEDIATYPE = Metadata.MIME_TYPE, DB_MEDIATYPE = "application/x-sqlite3";
 
+    private static final String FILE_HASH_ALG = "MD5";
+
+    private static final String RANGE = "Range", IF_RANGE = "If-Range", CONTENT_RANGE = "Content-Range", ETAG = "ETag",
+            ACCEPT_ENCODING = "Accept-Encoding", IDENTITY = "identity", CONTENT_LENGTH = "Content-Length";
+
 
     @Autowired
     private ApplicationEventPublisher eventPublisher;
@@ -62,16 +92,60 @@ public class ContentService {
     @Autowired
     private CounterService counters;
 
+    @Autowired
+    private GaugeService gauges;
+
+    @Autowired
+    private MetricRegistry metrics;
+
     @Autowired
     private CampaignService campaignService;
 
     @Autowired
     private FileSystem fs;
 
+    @Autowired
+    private Compressor compressor;
+
+    @Autowired
+    private ConnectionPool connectionPool;
+
+    @Autowired
+    private PollSchedule schedule;
+
+    @Autowired
+    private BlockStore blockStore;
+
+    @Autowired
+    private SyncPlanner planner;
+
+    @Autowired
+    private DiskBudget disk;
+
+    @Autowired
+    private VersionStore versions;
+
+    @Autowired
+    private DemandTracker demand;
+
+    @Autowired
+    private ContentHolds holds;
+
+    @Value("${app.update.min-interval}")
+    private long minRecheckInterval;
+
     @Value("${app.download.url}")
     private URI downloadUri;
 
-    private URI sideloadUri;
+    private volatile URI sideloadUri;
+
+    private volatile ServiceInfo primaryPeer;
+
+    private volatile List<ServiceInfo> peers = Collections.emptyList();
+
+    private final Map<Campaign, PeerSource> sources = new ConcurrentHashMap<>();
+
+    private final Random random = new Random();
 
     @Value("${app.download.username}")
     private String username;
@@ -83,34 +157,112 @@ public class ContentService {
 
     private Map<Campaign, String> updating = new ConcurrentHashMap<>();
 
-    private boolean isUpdating(Campaign campaign) {
-        return updating.get(campaign) != null;
+    private boolean setUpdating(Campaign campaign, Content content) {
+        return updating.putIfAbsent(campaign, content == null ? "missing content" : content.getContentHash()) == null;
     }
 
-    private void setUpdating(Campaign campaign, Content content) {
-        updating.put(campaign, content == null ? "missing content" : content.getContentHash());
+    private final Map<Campaign, CompletableFuture<UpdateCheck>> checks = new ConcurrentHashMap<>();
+
+    private final Map<Campaign, UpdateCheck> lastChecks = new ConcurrentHashMap<>();
+
+    private boolean clearUpdating(Campaign campaign) {
+        sources.remove(campaign);
+        return updating.remove(campaign) != null;
     }
 
-    private void clearUpdating(Campaign campaign) {
-        updating.remove(campaign);
+    /**
+     * Ends the campaign's update, answering everyone waiting on it and releasing held requests. Content published
+     * without an update, at startup or after an audit, only releases held requests: no check was made.
+     */
+    private void finishUpdate(Campaign campaign, UpdateCheck.Status status) {
+        demand.clearBoost(campaign);
+        if (clearUpdating(campaign)) {
+            if (status != UpdateCheck.Status.FAILED) {
+                demand.checked(campaign);
+            }
+            Content current = verified.get(campaign);
+            UpdateCheck check = new UpdateCheck(campaign, status, current == null ? null : current.getContentHash(),
+                    System.currentTimeMillis());
+            lastChecks.put(campaign, check);
+            CompletableFuture<UpdateCheck> waiting = checks.remove(campaign);
+            if (waiting != null) {
+                waiting.complete(check);
+            }
+        }
+        holds.release(campaign);
     }
 
-    @Scheduled(fixedDelay = 30 * 60 * 1000, initialDelay = 5 * 60 * 1000)
-    public void requestUpdate() {
+    public Map<Campaign, CompletableFuture<UpdateCheck>> requestUpdate() {
         counters.increment(UPDATE_REQUEST_METRIC);
-        for (Campaign campaign : campaignService.getCampaigns()) {
+        Map<Campaign, CompletableFuture<UpdateCheck>> results = new LinkedHashMap<>();
+        for (Campaign campaign : demand.byPriority(campaignService.getCampaigns())) {
+            results.put(campaign, checkForUpdate(campaign));
+        }
+        return results;
+    }
+
+    public Optional<CompletableFuture<UpdateCheck>> requestUpdate(String uuid) {
+        return campaignService.getCampaign(uuid).map(this::checkForUpdate);
+    }
+
+    /**
+     * Starts an update for a campaign tablets found without content, unless one is running already or upstream was
+     * checked within the minimum re-check interval. Returns whether an update is running, since only that can produce
+     * the content: otherwise requests for it have nothing to wait for.
+     */
+    public boolean requestMissing(Campaign campaign) {
+        if (!isUpdating(campaign)) {
+            checkForUpdate(campaign);
+        }
+        return isUpdating(campaign);
+    }
+
+    public boolean isUpdating(Campaign campaign) {
+        return updating.containsKey(campaign);
+    }
+
+    /**
+     * Checks the campaign for new content unless a check is already underway or one finished within the minimum
+     * re-check interval, so any number of triggers cost at most one upstream request. Returns the result of the check
+     * that answers this request.
+     */
+    private CompletableFuture<UpdateCheck> checkForUpdate(Campaign campaign) {
+        UpdateCheck last = lastChecks.get(campaign);
+        if (last != null && System.currentTimeMillis() - last.getChecked() < minRecheckInterval) {
+            counters.increment(UPDATE_COALESCED_METRIC);
+            return CompletableFuture.completedFuture(last);
+        }
+        CompletableFuture<UpdateCheck> check = new CompletableFuture<>(), underway = checks.putIfAbsent(campaign, check);
+        if (underway != null) {
+            counters.increment(UPDATE_COALESCED_METRIC);
+            return underway;
+        }
+        if (updating.containsKey(campaign)) {
+            counters.increment(UPDATE_COALESCED_METRIC);  // answered when the update already running finishes
+        } else {
             requestUpdate(campaign);
         }
+        return check;
+    }
+
+    @Scheduled(fixedDelayString = "${app.poll.tick}")
+    public void pollUpstream() {
+        for (Campaign campaign : demand.byPriority(campaignService.getCampaigns())) {
+            if (schedule.poll(campaign)) {
+                counters.increment(UPDATE_REQUEST_METRIC);
+                requestUpdate(campaign);
+            }
+        }
     }
 
     private void requestUpdate(Campaign campaign) {
-        if (isUpdating(campaign)) {
+        Content existing = verified.get(campaign);
+        if (setUpdating(campaign, existing)) {
+            log.info("requesting update to {} ({})", updating.get(campaign), campaign.getName());
+            eventPublisher.publishEvent(new UpdateRequested(campaign, existing));
+        } else {
             log.info("update to {} ({}) in progress, ignoring update request", updating.get(campaign), campaign.getName());
             counters.increment(UPDATE_IGNORED_METRIC);
-        } else {
-            setUpdating(campaign, verified.get(campaign));
-            log.info("requesting update to {} ({})", updating.get(campaign), campaign.getName());
-            eventPublisher.publishEvent(new UpdateRequested(campaign, verified.get(campaign)));
         }
     }
 
@@ -141,18 +293,44 @@ public class ContentService {
         Set<Campaign> removed = new HashSet<>(old.values());
         removed.removeAll(now.values());
         for (Campaign c : removed) {
-            try {
-                log.info("cleaning up {} ({})", c.getUuid(), c.getName());
-                removeCampaign(c);
-            } catch (IOException e) {
-                log.warn("failed to cleanup content", e);
-            }
+            eventPublisher.publishEvent(new CampaignRemoved(c));
+        }
+    }
+
+    @EventListener
+    public void onCampaignRemoved(CampaignRemoved event) {
+        schedule.remove(event.getCampaign());
+        cleanupCampaign(event.getCampaign());
+        lastChecks.remove(event.getCampaign());
+    }
+
+    private void cleanupCampaign(Campaign c) {
+        try {
+            log.info("cleaning up {} ({})", c.getUuid(), c.getName());
+            removeCampaign(c);
+        } catch (IOException e) {
+            log.warn("failed to cleanup content", e);
         }
     }
 
+    private boolean isActive(Campaign campaign) {
+        return campaignService.getCampaign(campaign.getUuid()).isPresent();
+    }
+
     private void removeCampaign(Campaign c) throws IOException {
         verified.remove(c);
-        cleanupFiles(fs.getContent(c).toPath(), fs.getMetadata(c).toPath());
+        cleanupFiles(fs.getContent(c).toPath(), fs.getMetadata(c).toPath(), fs.getVerificationRecord(c).toPath(),
+                fs.getCompressedContent(c).toPath(), fs.getCompressedMetadata(c).toPath());
+        discardPartial(c);
+    }
+
+    private void discardPartial(Campaign c) {
+        try {
+            deleteIfExists(fs.getPartialContent(c).toPath());
+            deleteIfExists(fs.getTransferJournal(c).toPath());
+        } catch (IOException e) {
+            log.warn("failed to remove partial content", e);
+        }
     }
 
     @EventListener
@@ -165,11 +343,25 @@ public class ContentService {
         Campaign campaign = event.getCampaign();
         try {
             Metadata metadata = loadMetadata(event.getMetadata());
-            byte[] metadataHash = metadata.getFileHash(), computedHash = computeHash(event.getContent(), metadata.getFileHashAlg());
+            byte[] metadataHash = metadata.getFileHash(), computedHash = event.getContentHash();
+            if (computedHash == null) {
+                computedHash = getTrustedHash(campaign, event.getContent());
+            }
+            if (computedHash == null) {
+                computedHash = computeHash(event.getContent(), metadata.getFileHashAlg());
+            }
             String contentHash = encodeHexString(computedHash);
-            if (Arrays.equals(metadataHash, computedHash)) {
+            PeerSource peer = sources.get(campaign);
+            if (peer != null && !peer.target.equalsIgnoreCase(contentHash)) {
+                // a peer's metadata is no more trusted than its content, so hold it to what the primary advertised
+                counters.increment(VERIFY_FAILURES_METRIC);
+                log.warn("peer content rejected {} ({}): advertised {}, computed {}",
+                        campaign.getUuid(), campaign.getName(), peer.target, contentHash);
+                return new SyncFailure(event.getCampaign(), "peer content did not match advertised hash, cleaning up", null,
+                        event.getContent().toPath(), event.getMetadata().toPath(), pathOf(event.getCompressedContent()));
+            } else if (Arrays.equals(metadataHash, computedHash)) {
                 log.info("content verified {} ({})", campaign.getUuid(), campaign.getName());
-                Content confirmed = new Content(contentHash, event.getContent(), event.getMetadata());
+                Content confirmed = new Content(contentHash, event.getContent(), event.getMetadata(), event.getCompressedContent(), null);
                 return new ContentVerified(campaign, confirmed);
             } else {
                 counters.increment(VERIFY_FAILURES_METRIC);
@@ -178,22 +370,90 @@ public class ContentService {
                             campaign.getUuid(), campaign.getName(), encodeHexString(metadataHash), contentHash);
                 }
                 return new SyncFailure(event.getCampaign(), "content verification failed, cleaning up", null,
-                        event.getContent().toPath(), event.getMetadata().toPath());
+                        event.getContent().toPath(), event.getMetadata().toPath(), pathOf(event.getCompressedContent()));
+            }
+        } catch (Exception e) {
+            return new SyncFailure(event.getCampaign(), "content verification failed", e, pathOf(event.getCompressedContent()));
+        }
+    }
+
+    private byte[] getTrustedHash(Campaign campaign, File content) {
+        if (content.equals(fs.getContent(campaign))) {
+            VerificationRecord record = VerificationRecord.read(fs.getVerificationRecord(campaign));
+            if (record != null && record.matches(content)) {
+                try {
+                    byte[] hash = decodeHex(record.getHash().toCharArray());
+                    log.info("content unchanged since verification {} ({})", campaign.getUuid(), campaign.getName());
+                    counters.increment(VERIFY_TRUSTED_METRIC);
+                    return hash;
+                } catch (DecoderException e) {
+                    log.warn("bad verification record {} ({})", campaign.getUuid(), campaign.getName());
+                }
             }
+        }
+        return null;
+    }
+
+    private void recordVerification(Campaign campaign, Content installed) {
+        try {
+            VerificationRecord.of(installed.getContentHash(), installed.getContentFile()).write(fs.getVerificationRecord(campaign));
+        } catch (IOException e) {
+            log.warn("failed to record verification", e);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${app.verify.audit.interval}", initialDelayString = "${app.verify.audit.interval}")
+    public void auditContent() {
+        verified.forEach((campaign, content) -> eventPublisher.publishEvent(new AuditRequested(campaign, content)));
+    }
+
+    @EventListener
+    public void onAuditRequested(AuditRequested event) {
+        Campaign campaign = event.getCampaign();
+        Content content = event.getContent();
+        if (!content.equals(verified.get(campaign))) {
+            return;
+        }
+        try {
+            Metadata metadata = loadMetadata(content.getMetadataFile());
+            String computed = encodeHexString(computeHash(content.getContentFile(), metadata.getFileHashAlg()));
+            if (computed.equals(content.getContentHash())) {
+                log.info("audit passed {} ({})", campaign.getUuid(), campaign.getName());
+                return;
+            }
+            log.warn("audit failed {} ({}): expected {}, computed {}",
+                    campaign.getUuid(), campaign.getName(), content.getContentHash(), computed);
         } catch (Exception e) {
-            return new SyncFailure(event.getCampaign(), "content verification failed", e);
+            log.warn("audit failed " + campaign.getUuid(), e);
         }
+        counters.increment(AUDIT_FAILURES_METRIC);
+        verified.remove(campaign, content);
+        try {
+            deleteIfExists(fs.getVerificationRecord(campaign).toPath());
+        } catch (IOException e) {
+            log.warn("failed to remove verification record", e);
+        }
+        requestUpdate(campaign);
     }
 
     @EventListener
     public Object onContentVerified(ContentVerified event) {
         Campaign campaign = event.getCampaign();
         Content confirmed = event.getContent();
+        long start = System.currentTimeMillis();
         log.info("installing content {} ({}), hash: {}", campaign.getUuid(), campaign.getName(), confirmed.getContentHash());
-        File content = fs.getContent(campaign), metadata = fs.getMetadata(campaign);
+        File content = fs.getContent(campaign), metadata = fs.getMetadata(campaign),
+                compressedContent = fs.getCompressedContent(campaign), compressedMetadata = fs.getCompressedMetadata(campaign),
+                newCompressedContent = confirmed.getCompressedContentFile() != null ?
+                        confirmed.getCompressedContentFile() : compress(confirmed.getContentFile(), compressedContent),
+                newCompressedMetadata = compress(confirmed.getMetadataFile(), compressedMetadata);
         if (confirmed.getContentFile().renameTo(content)) {
             if (confirmed.getMetadataFile().renameTo(metadata)) {
-                return new ContentReady(campaign, new Content(confirmed.getContentHash(), content, metadata));
+                Content installed = new Content(confirmed.getContentHash(), content, metadata,
+                        install(newCompressedContent, compressedContent), install(newCompressedMetadata, compressedMetadata));
+                recordVerification(campaign, installed);
+                recordTime(INSTALL_TIMER, start);
+                return new ContentReady(campaign, retainVersion(campaign, installed));
             } else {
                 log.warn("failed to move metadata {} ({}): {} to {}",
                         campaign.getUuid(), campaign.getName(), confirmed.getMetadataFile(), metadata);
@@ -203,73 +463,362 @@ public class ContentService {
                     campaign.getUuid(), campaign.getName(), confirmed.getContentFile(), content);
         }
         counters.increment(INSTALL_FAILURES_METRIC);
-        return new SyncFailure(campaign, "failure installing content, cleaning up", null, content.toPath(), metadata.toPath());
+        return new SyncFailure(campaign, "failure installing content, cleaning up", null, content.toPath(), metadata.toPath(),
+                fs.getVerificationRecord(campaign).toPath(),
+                compressedContent.toPath(), compressedMetadata.toPath(), pathOf(newCompressedContent), pathOf(newCompressedMetadata));
+    }
+
+    /**
+     * Returns the installed content as served from its retained version, so replacing the installed files never
+     * changes content being served. Campaigns removed during the update keep nothing, as their content is about to go.
+     */
+    private Content retainVersion(Campaign campaign, Content installed) {
+        if (!isActive(campaign)) {
+            return installed;
+        }
+        try {
+            Content version = versions.retain(campaign, installed);
+            if (version != null) {
+                return version;
+            }
+        } catch (IOException e) {
+            log.warn("failed to retain version " + installed.getContentHash(), e);
+        }
+        return installed;
+    }
+
+    private File compress(File source, File installed) {
+        if (installed.exists() && installed.lastModified() >= source.lastModified()
+                && installed.getName().equals(source.getName() + ".gz")) {
+            log.info("reusing compressed content {}", installed);
+            return installed;
+        }
+        Path compressed = null;
+        try {
+            compressed = createTempFile(installed.toPath().getParent(), "compressed-", ".gz");
+            compressor.compress(source, compressed.toFile());
+            return compressed.toFile();
+        } catch (IOException e) {
+            counters.increment(COMPRESS_FAILURES_METRIC);
+            log.warn("failed to compress " + source, e);
+            try {
+                cleanupFiles(compressed);
+            } catch (IOException ce) {
+                log.warn("failed during cleanup", ce);
+            }
+            return null;
+        }
+    }
+
+    private File install(File compressed, File installed) {
+        if (compressed != null && (compressed.equals(installed) || compressed.renameTo(installed))) {
+            return installed;
+        }
+        try {
+            if (compressed != null) {
+                deleteIfExists(compressed.toPath());
+            }
+            deleteIfExists(installed.toPath());
+        } catch (IOException e) {
+            log.warn("failed to remove stale compressed content", e);
+        }
+        return null;
+    }
+
+    private static Path pathOf(File file) {
+        return file == null ? null : file.toPath();
     }
 
     @EventListener
     public void onContentReady(ContentReady event) {
         Campaign campaign = event.getCampaign();
         Content content = event.getContent();
-        log.info("publishing content {} ({}), hash: {}", campaign.getUuid(), campaign.getName(), content.getContentHash());
-        verified.put(campaign, content);
-        clearUpdating(campaign);
+        if (isActive(campaign)) {
+            log.info("publishing content {} ({}), hash: {}", campaign.getUuid(), campaign.getName(), content.getContentHash());
+            verified.put(campaign, content);
+            schedule.changed(campaign);
+        } else {
+            log.info("campaign removed during update {} ({})", campaign.getUuid(), campaign.getName());
+            cleanupCampaign(campaign);
+        }
+        finishUpdate(campaign, UpdateCheck.Status.UPDATED);
     }
 
     @EventListener
     public FetchEvent onUpdateRequested(UpdateRequested event) {
         Campaign campaign = event.getCampaign();
+        PeerSource peer = choosePeer(campaign, event.getExisting());
+        if (peer != null) {
+            log.info("fetching {} ({}) from peer {}", campaign.getUuid(), campaign.getName(), peer.uri);
+            sources.put(campaign, peer);
+        }
+        File partial = fs.getPartialContent(campaign), journalFile = fs.getTransferJournal(campaign);
+        TransferJournal journal = TransferJournal.read(journalFile);
+        long resumeFrom = getResumePoint(journal, partial);
         try {
-            Request request = getDownloadRequestFactory(campaign, event.getExisting()).create();
-            switch (request.getResponseCode()) {
+            long start = System.currentTimeMillis();
+            Request request;
+            if (resumeFrom > 0) {
+                log.info("resuming database {} ({}) from byte {}", campaign.getUuid(), campaign.getName(), resumeFrom);
+                request = getDatabaseRequestFactory(campaign, event.getExisting()).create();
+                requestRemainder(request, resumeFrom, journal);
+            } else {
+                request = getDownloadRequestFactory(campaign, event.getExisting()).create();
+            }
+            int responseCode = request.getResponseCode();
+            recordRequest(start);
+            schedule.hint(campaign, request::getHeader);
+            switch (responseCode) {
                 case SC_NOT_MODIFIED:
                     log.info("no new content {} ({})", campaign.getUuid(), campaign.getName());
+                    discardPartial(campaign);
                     return new SyncUnnecessary(campaign);
+                case SC_PARTIAL_CONTENT:
+                    if (isRemainder(request, resumeFrom)) {
+                        return fetchDatabase(campaign, request, partial, journalFile, resumeFrom);
+                    }
+                    discardPartial(campaign);
+                    return new SyncFailure(campaign, "unexpected partial response");
                 case SC_OK:
                     Path contentParent = fs.getContent(campaign).toPath().getParent();
-                    if (request.getContentType().contains(METADATA_MEDIATYPE)) {
+                    if (hasType(request, METADATA_MEDIATYPE)) {
                         log.info("fetching metadata {} ({})", campaign.getUuid(), campaign.getName());
                         Path newMeta = createTempFile(contentParent, "metadata-", "." + Metadata.FILE_EXT);
                         try {
-                            Files.copy(request.getInputStream(), newMeta, REPLACE_EXISTING);
+                            start = System.currentTimeMillis();
+                            recordStream(Files.copy(request.getInputStream(), newMeta, REPLACE_EXISTING), start);
+                            recordTime(METADATA_TIMER, start);
                             return new MetadataFetched(campaign, newMeta.toFile());
                         } catch (IOException e) {
                             return new SyncFailure(campaign, "metadata fetch failed", e, newMeta);
                         }
-                    } else if (request.getContentType().contains(DB_MEDIATYPE)) {
+                    } else if (hasType(request, DB_MEDIATYPE)) {
                         log.info("fetching database {} ({})", campaign.getUuid(), campaign.getName());
-                        Path newDb = createTempFile(contentParent, "database-", ".db");
-                        try (MetadataInputWrapper wrapper = new MetadataInputWrapper(request.getInputStream(), "", 65536, "MD5", "MD5", contentParent.toFile())) {
-                            Files.copy(wrapper, newDb, REPLACE_EXISTING);
-                            return new DatabaseFetched(campaign, wrapper.getMetadataFile(), newDb.toFile());
-                        } catch (NoSuchAlgorithmException | IOException e) {
-                            return new SyncFailure(campaign, "database fetch failed", e, newDb);
-                        }
+                        return fetchDatabase(campaign, request, partial, journalFile, 0);
                     } else {
                         return new SyncFailure(campaign, "unknown content " + request.getContentType());
                     }
+                case SC_REQUESTED_RANGE_NOT_SATISFIABLE:
+                    discardPartial(campaign);
+                    return new SyncFailure(campaign, "partial download no longer valid, discarding");
                 default:
-                    return new SyncFailure(campaign, "unexpected response: " + request.getResponseCode());
+                    return new SyncFailure(campaign, "unexpected response: " + responseCode);
             }
         } catch (IOException e) {
             return new SyncFailure(campaign, "io error handling update request", e);
         }
     }
 
+    /**
+     * Downloads the database into the campaign's partial file. A download with an entity tag is journaled so that,
+     * if it fails, the next attempt continues with a range request while the tag is unchanged. When resuming, the bytes
+     * already on disk are replayed through the hash and metadata calculation before the remainder arrives.
+     */
+    private FetchEvent fetchDatabase(Campaign campaign, Request request, File partial, File journalFile, long resumeFrom) {
+        Path contentParent = partial.toPath().getParent();
+        boolean resumable = resumeFrom > 0;
+        try {
+            long expected = Math.max(resumeFrom + getContentLength(request), fs.getContent(campaign).length());
+            disk.require(expected - resumeFrom + expected, "database download");  // the rest of it and its compressed copy
+            InputStream source = request.getInputStream();
+            if (resumeFrom > 0) {
+                source = new SequenceInputStream(new FileInputStream(partial), source);
+            } else {
+                String eTag = request.getHeader(ETAG);
+                deleteIfExists(partial.toPath());
+                if (eTag != null) {
+                    new TransferJournal(FULL, eTag).write(journalFile);
+                    resumable = true;
+                } else {
+                    deleteIfExists(journalFile.toPath());
+                }
+            }
+            try (MetadataInputWrapper wrapper = new MetadataInputWrapper(source, "", 65536, FILE_HASH_ALG, FILE_HASH_ALG, contentParent.toFile());
+                 OutputStream out = new FileOutputStream(partial, resumeFrom > 0)) {
+                DigestInputStream digestStream = new DigestInputStream(wrapper, MessageDigest.getInstance(FILE_HASH_ALG));
+                long start = System.currentTimeMillis();
+                recordStream(append(digestStream, out, resumeFrom), start);
+                recordTime(DATABASE_TIMER, start);
+                deleteIfExists(journalFile.toPath());
+                return new DatabaseFetched(campaign, wrapper.getMetadataFile(), partial, digestStream.getMessageDigest().digest());
+            }
+        } catch (NoSuchAlgorithmException | IOException e) {
+            if (resumable && partial.length() > 0) {
+                return new SyncFailure(campaign, "database fetch failed, keeping " + partial.length() + " bytes to resume", e);
+            }
+            discardPartial(campaign);
+            return new SyncFailure(campaign, "database fetch failed", e);
+        }
+    }
+
+    /**
+     * Returns the length of the response body, or 0 if not given. The body may be compressed, so this is a lower bound
+     * on the size of the database it holds.
+     */
+    private static long getContentLength(Request request) {
+        try {
+            return Math.max(0, Long.parseLong(request.getHeader(CONTENT_LENGTH)));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Copies the stream to out, skipping the given number of leading bytes that are already there.
+     */
+    private static long append(InputStream in, OutputStream out, long skip) throws IOException {
+        byte[] buf = new byte[65536];
+        long position = 0, written = 0;
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            int offset = (int) Math.max(0, Math.min(read, skip - position));
+            if (offset < read) {
+                out.write(buf, offset, read - offset);
+                written += read - offset;
+            }
+            position += read;
+        }
+        return written;
+    }
+
     @EventListener
     public Object onMetadataFetched(MetadataFetched event) {
         counters.increment(METADATA_FETCHES_METRIC);
-        Path newDb = null;
+        Path newDb = null, compressed = null, seed = null;
+        boolean kept = false;
         Campaign campaign = event.getCampaign();
         try {
             Metadata metadata = loadMetadata(event.getMetadata());
-            log.info("incremental {} ({}): hash {}",
-                    campaign.getUuid(), campaign.getName(), encodeHexString(metadata.getFileHash()));
+            String target = encodeHexString(metadata.getFileHash());
+            File partial = fs.getPartialContent(campaign), journalFile = fs.getTransferJournal(campaign), basis = fs.getContent(campaign);
+            TransferJournal journal = TransferJournal.read(journalFile);
+            File syncPartial = journal != null && journal.isFor(SYNC, target) ? partial : null;
+            SyncPlanner.Plan plan = planner.plan(metadata, blockStore.findMissing(metadata, syncPartial), getCompression(campaign));
+            if (plan.getMode() == FULL) {
+                log.info("full download {} ({}): hash {}, {}", campaign.getUuid(), campaign.getName(), target, plan.getReason());
+                return fetchFull(campaign, event.getMetadata());
+            }
+            log.info("incremental {} ({}): hash {}, {}", campaign.getUuid(), campaign.getName(), target, plan.getReason());
+            seed = blockStore.buildSeed(campaign, metadata, syncPartial);  // budgets for itself and what follows
+            if (seed != null) {
+                basis = seed.toFile();
+            }
+            disk.require(metadata.getFileSize() * 2, "sync");  // the new database and its compressed copy
             newDb = createTempFile(fs.getContent(campaign).toPath().getParent(), "database-", ".db");
-            ZSync.sync(metadata, fs.getContent(campaign), newDb.toFile(), getSyncRequestFactory(campaign));
-            return new ContentAvailable(campaign, newDb.toFile(), event.getMetadata());
+            disk.preallocate(newDb.toFile(), metadata.getFileSize());
+            long start = System.currentTimeMillis();
+            LongAdder received = new LongAdder();
+            try {
+                ZSync.sync(metadata, basis, newDb.toFile(), getSyncRequestFactory(campaign, received));
+            } catch (Exception e) {
+                kept = keepPartialSync(campaign, metadata, newDb.toFile(), target);
+                throw e;
+            } finally {
+                recordUpstream(received.sum(), start);
+            }
+            discardPartial(campaign);
+            recordTime(ZSYNC_TIMER, start);
+            // ZSync writes the file itself, so hash it during the compression pass that installation needs anyway
+            compressed = createTempFile(newDb.getParent(), "compressed-", ".gz");
+            MessageDigest digest = MessageDigest.getInstance(metadata.getFileHashAlg());
+            start = System.currentTimeMillis();
+            compressor.compress(newDb.toFile(), compressed.toFile(), digest);
+            recordTime(COMPRESS_TIMER, start);
+            return new ContentAvailable(campaign, newDb.toFile(), event.getMetadata(), digest.digest(), compressed.toFile());
         } catch (Exception e) {
-            return newDb != null ? new SyncFailure(campaign, "sync failed", e, newDb) : new SyncFailure(campaign, "sync failed", e);
+            return new SyncFailure(campaign, "sync failed", e, kept ? null : newDb, compressed);
+        } finally {
+            try {
+                cleanupFiles(seed);
+            } catch (IOException e) {
+                log.warn("failed to remove seed", e);
+            }
+        }
+    }
+
+    /**
+     * Downloads the whole database in place of a sync judged slower, discarding the metadata fetched for the sync. An
+     * earlier full download that was cut short continues where it stopped, as long as the content is unchanged.
+     */
+    private FetchEvent fetchFull(Campaign campaign, File metadata) throws IOException {
+        cleanupFiles(metadata.toPath());
+        File partial = fs.getPartialContent(campaign), journalFile = fs.getTransferJournal(campaign);
+        TransferJournal journal = TransferJournal.read(journalFile);
+        long resumeFrom = getResumePoint(journal, partial), start = System.currentTimeMillis();
+        Request request = getDatabaseRequestFactory(campaign, verified.get(campaign)).create();
+        if (resumeFrom > 0) {
+            log.info("resuming database {} ({}) from byte {}", campaign.getUuid(), campaign.getName(), resumeFrom);
+            requestRemainder(request, resumeFrom, journal);
+        }
+        int responseCode = request.getResponseCode();
+        recordRequest(start);
+        if (responseCode == SC_PARTIAL_CONTENT && isRemainder(request, resumeFrom)) {
+            return fetchDatabase(campaign, request, partial, journalFile, resumeFrom);
+        } else if (responseCode == SC_OK && hasType(request, DB_MEDIATYPE)) {
+            return fetchDatabase(campaign, request, partial, journalFile, 0);
+        } else if (responseCode == SC_PARTIAL_CONTENT || responseCode == SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+            discardPartial(campaign);
         }
+        return new SyncFailure(campaign, "unexpected response to full download: " + responseCode);
+    }
+
+    /**
+     * Returns the byte a journaled full download stopped at, or 0 when there is none to continue.
+     */
+    private static long getResumePoint(TransferJournal journal, File partial) {
+        return journal != null && journal.getMode() == FULL && partial.exists() ? partial.length() : 0;
+    }
+
+    /**
+     * Asks for the rest of the database from the given byte, provided it is still the journaled content. Ranges
+     * address the identity encoding, so the remainder is not compressed.
+     */
+    private static void requestRemainder(Request request, long resumeFrom, TransferJournal journal) {
+        request.setHeader(RANGE, "bytes=" + resumeFrom + "-");
+        request.setHeader(IF_RANGE, journal.getTarget());
+        request.setHeader(ACCEPT_ENCODING, IDENTITY);
+    }
+
+    private static boolean isRemainder(Request request, long resumeFrom) {
+        return resumeFrom > 0 && hasType(request, DB_MEDIATYPE)
+                && String.valueOf(request.getHeader(CONTENT_RANGE)).startsWith("bytes " + resumeFrom + "-");
+    }
+
+    private static boolean hasType(Request request, String type) {
+        String contentType = request.getContentType();
+        return contentType != null && contentType.contains(type);
+    }
+
+    /**
+     * Returns the ratio of the campaign's compressed content to its database, an estimate of what a full download
+     * costs relative to the database size, or 1 if there is no content yet.
+     */
+    private double getCompression(Campaign campaign) {
+        File content = fs.getContent(campaign), compressed = fs.getCompressedContent(campaign);
+        return content.length() > 0 && compressed.length() > 0 ? Math.min(1.0, (double) compressed.length() / content.length()) : 1.0;
+    }
+
+    /**
+     * Keeps a failed sync's output as the campaign's partial content if it holds more of the target than the partial
+     * already kept.
+     */
+    private boolean keepPartialSync(Campaign campaign, Metadata metadata, File failed, String target) {
+        File partial = fs.getPartialContent(campaign), journalFile = fs.getTransferJournal(campaign);
+        try {
+            TransferJournal journal = TransferJournal.read(journalFile);
+            int blocks = copyVerifiedBlocks(failed, metadata, null, null),
+                    previous = journal != null && journal.isFor(SYNC, target) && partial.exists() ? copyVerifiedBlocks(partial, metadata, null, null) : 0;
+            if (blocks > previous) {
+                Files.move(failed.toPath(), partial.toPath(), REPLACE_EXISTING);
+                new TransferJournal(SYNC, target).write(journalFile);
+                log.info("keeping {} of {} blocks of failed sync {} ({})",
+                        blocks, metadata.getBlockDescs().size(), campaign.getUuid(), campaign.getName());
+                return true;
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            log.warn("failed to keep partial sync", e);
+        }
+        return false;
     }
 
     @EventListener
@@ -282,7 +831,7 @@ public class ContentService {
                 log.info("full download {} ({}): hash {}",
                         campaign.getUuid(), campaign.getName(), encodeHexString(metadata.getFileHash()));
             }
-            return new ContentAvailable(campaign, event.getDatabase(), event.getMetadata());
+            return new ContentAvailable(campaign, event.getDatabase(), event.getMetadata(), event.getDatabaseHash(), null);
         } catch (Exception e) {
             return new SyncFailure(campaign, "sync failed", e);
         }
@@ -293,26 +842,71 @@ public class ContentService {
         if (event.isServicePrimary()) {
             sideloadUri = null;
         } else {
-            ServiceInfo primary = event.getPrimaryServiceInfo();
-            String[] primaryUrls = primary.getURLs();
-            if (primaryUrls.length > 0) {
-                String url = primaryUrls[0];
-                try {
-                    sideloadUri = new URI(url);
-                } catch (URISyntaxException e) {
-                    log.warn("new primary has bad url: {}", url);
-                }
-            } else {
-                log.warn("primary without urls: {}", primary);
+            URI uri = uriOf(event.getPrimaryServiceInfo());
+            if (uri != null) {
+                sideloadUri = uri;
             }
         }
         log.info("zeroconf change, sync endpoint: {}", getURI());
     }
 
+    /**
+     * Tracks which peers hold which content, and starts an update for any campaign where the primary advertises
+     * content this sidecar lacks. Updates fetch from a random peer already holding it, so new content fans out across
+     * the site rather than being served entirely by the primary.
+     */
+    @EventListener
+    public void onPeersChanged(ZeroconfPeersChanged event) {
+        primaryPeer = event.getPrimaryServiceInfo();
+        peers = event.getPeers();
+        if (primaryPeer != null) {
+            for (Campaign campaign : campaignService.getCampaigns()) {
+                String target = primaryPeer.getPropertyString(campaign.getUuid());
+                Content existing = verified.get(campaign);
+                if (target != null && (existing == null || !target.equals(existing.getContentHash()))) {
+                    log.info("peer content available {} ({}), hash: {}", campaign.getUuid(), campaign.getName(), target);
+                    requestUpdate(campaign);
+                }
+            }
+        }
+    }
+
+    private PeerSource choosePeer(Campaign campaign, Content existing) {
+        ServiceInfo primary = primaryPeer;
+        String target = primary == null ? null : primary.getPropertyString(campaign.getUuid());
+        if (target == null || existing != null && target.equals(existing.getContentHash())) {
+            return null;
+        }
+        List<URI> holders = new ArrayList<>();
+        for (ServiceInfo peer : peers) {
+            URI uri;
+            if (target.equals(peer.getPropertyString(campaign.getUuid())) && (uri = uriOf(peer)) != null) {
+                holders.add(uri);
+            }
+        }
+        return holders.isEmpty() ? null : new PeerSource(holders.get(random.nextInt(holders.size())), target);
+    }
+
+    private URI uriOf(ServiceInfo service) {
+        String[] urls = service.getURLs();
+        if (urls.length > 0) {
+            String url = urls[0];
+            try {
+                return new URI(url);
+            } catch (URISyntaxException e) {
+                log.warn("peer has bad url: {}", url);
+            }
+        } else {
+            log.warn("peer without urls: {}", service);
+        }
+        return null;
+    }
+
     @EventListener
     public void onSyncFailure(SyncFailure event) {
         counters.increment(UPDATE_FAILURES_METRIC);
-        clearUpdating(event.getCampaign());
+        schedule.backOff(event.getCampaign());
+        finishUpdate(event.getCampaign(), UpdateCheck.Status.FAILED);
         if (event.getFailure() != null) {
             log.warn(event.getMessage(), event.getFailure());
         } else {
@@ -328,13 +922,14 @@ public class ContentService {
     @EventListener
     public void onSyncUnncessary(SyncUnnecessary event) {
         counters.increment(UPDATE_NO_CHANGE_METRIC);
-        clearUpdating(event.getCampaign());
+        schedule.backOff(event.getCampaign());
+        finishUpdate(event.getCampaign(), UpdateCheck.Status.UNCHANGED);
     }
 
     private void cleanupFiles(Path... filesToRemove) throws IOException {
         if (filesToRemove != null) {
             for (Path p : filesToRemove) {
-                if (!deleteIfExists(p)) {
+                if (p != null && !deleteIfExists(p)) {
                     log.warn("failed to delete file {}", p);
                 }
             }
@@ -346,27 +941,67 @@ public class ContentService {
     }
 
     private URI getURI(Campaign campaign) {
-        return getURI().resolve(campaign.getUuid());
+        PeerSource source = sources.get(campaign);
+        return (source != null ? source.uri : getURI()).resolve(campaign.getUuid());
     }
 
-    private String getCreds() {
-        return sideloadUri != null ? null : getBasicAuthCreds(username, password);
+    private String getCreds(Campaign campaign) {
+        return sideloadUri != null || sources.containsKey(campaign) ? null : getBasicAuthCreds(username, password);
     }
 
     private RequestFactory getDownloadRequestFactory(Campaign campaign, Content existing) {
+        String accept = String.join(", ", METADATA_MEDIATYPE, DB_MEDIATYPE);
         if (existing != null) {
-            String accept = String.join(", ", METADATA_MEDIATYPE, DB_MEDIATYPE);
-            return new RequestFactory(getURI(campaign), accept, getCreds(), existing.getContentHash());
+            return new RequestFactory(getURI(campaign), accept, getCreds(campaign), existing.getContentHash());
+        } else if (!blockStore.isEmpty()) {
+            // a new campaign may still share most of its blocks with other local content
+            return new RequestFactory(getURI(campaign), accept, getCreds(campaign));
         } else {
-            return new RequestFactory(getURI(campaign), DB_MEDIATYPE, getCreds());
+            return new RequestFactory(getURI(campaign), DB_MEDIATYPE, getCreds(campaign));
         }
     }
 
-    private RequestFactory getSyncRequestFactory(Campaign campaign) {
-        return new RequestFactory(getURI(campaign), DB_MEDIATYPE, getCreds());
+    private RequestFactory getDatabaseRequestFactory(Campaign campaign, Content existing) {
+        return new RequestFactory(getURI(campaign), DB_MEDIATYPE, getCreds(campaign), existing == null ? null : existing.getContentHash());
+    }
+
+    private RangeRequestFactory getSyncRequestFactory(Campaign campaign, LongAdder received) {
+        return new PooledRequestFactory(getURI(campaign), DB_MEDIATYPE, getCreds(campaign), connectionPool, received::add);
+    }
+
+    private void recordTime(String timer, long start) {
+        gauges.submit(timer, System.currentTimeMillis() - start);
+    }
+
+    private void recordRequest(long start) {
+        recordTime(REQUEST_TIMER, start);
+        planner.recordRequest(System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Records a transfer over a single connection, which unlike a sync's range requests measures link bandwidth.
+     */
+    private void recordStream(long bytes, long start) {
+        recordUpstream(bytes, start);
+        planner.recordTransfer(bytes, System.currentTimeMillis() - start);
+    }
+
+    private void recordUpstream(long bytes, long start) {
+        metrics.meter(UPSTREAM_BYTES_METRIC).mark(bytes);
+        long elapsed = System.currentTimeMillis() - start;
+        if (elapsed > 0) {
+            gauges.submit(UPSTREAM_THROUGHPUT_METRIC, bytes * 1000.0 / elapsed);
+        }
     }
 
     private byte[] computeHash(File content, String fileHashAlg) throws NoSuchAlgorithmException, IOException {
+        long start = System.currentTimeMillis();
+        byte[] hash = hash(content, fileHashAlg);
+        recordTime(HASH_TIMER, start);
+        return hash;
+    }
+
+    static byte[] hash(File content, String fileHashAlg) throws NoSuchAlgorithmException, IOException {
         MessageDigest digest = MessageDigest.getInstance(fileHashAlg);
         try (FileInputStream fin = new FileInputStream(content)) {
             byte[] buf = new byte[8192];
@@ -390,4 +1025,18 @@ public class ContentService {
     private String getBasicAuthCreds(String username, String password) {
         return "Basic " + encodeBase64String((username + ":" + password).getBytes(Charset.forName("US-ASCII")));
     }
+
+    /**
+     * A peer chosen to fetch a campaign's content from, with the content hash the primary advertised for it.
+     */
+    private static class PeerSource {
+
+        final URI uri;
+        final String target;
+
+        PeerSource(URI uri, String target) {
+            this.uri = uri;
+            this.target = target;
+        }
+    }
 }
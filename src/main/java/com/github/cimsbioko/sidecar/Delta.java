@@ -0,0 +1,200 @@
+package com.github.cimsbioko.sidecar;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Binary patches between two versions of a database. SQLite only ever rewrites whole pages in place or moves them to
+ * other page-aligned offsets, so matching page-aligned blocks by strong hash finds nearly all shared content without
+ * a rolling checksum.
+ * <p>
+ * Format (big-endian, as written by {@link DataOutputStream}):
+ * <pre>
+ *   magic "CIMSDLT1", UTF base hash, UTF target hash, long target length, then operations:
+ *   'C' long baseOffset long length  - copy bytes from the base file
+ *   'D' long length bytes...         - literal bytes
+ *   'E'                              - end of patch
+ * </pre>
+ */
+public class Delta {
+
+    public static final String MIME_TYPE = "application/vnd.cims.sidecar+delta";
+
+    private static final byte[] MAGIC = "CIMSDLT1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SQLITE_MAGIC = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int DEFAULT_BLOCK_SIZE = 4096;
+    private static final int MAX_LITERAL = 1024 * 1024;
+    private static final byte COPY = 'C', DATA = 'D', END = 'E';
+
+    /**
+     * Writes a patch turning base into target and returns the number of literal bytes it carries.
+     */
+    public static long create(File base, String baseHash, File target, String targetHash, File delta)
+            throws IOException, NoSuchAlgorithmException {
+        try (FileChannel baseIn = FileChannel.open(base.toPath(), READ);
+             FileChannel targetIn = FileChannel.open(target.toPath(), READ);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(delta)))) {
+
+            int blockSize = blockSize(targetIn);
+            Map<ByteBuffer, Long> index = index(baseIn, blockSize);
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            ByteArrayOutputStream literal = new ByteArrayOutputStream();
+            long copyStart = -1, copyLength = 0, literalBytes = 0, targetLength = targetIn.size();
+
+            out.write(MAGIC);
+            out.writeUTF(baseHash);
+            out.writeUTF(targetHash);
+            out.writeLong(targetLength);
+
+            for (long position = 0; position < targetLength; position += blockSize) {
+                int length = read(targetIn, position, block);
+                Long match = length == blockSize ? index.get(hash(digest, block)) : null;
+                if (match != null) {
+                    literalBytes += flushData(out, literal);
+                    if (copyStart >= 0 && copyStart + copyLength == match) {
+                        copyLength += length;
+                    } else {
+                        flushCopy(out, copyStart, copyLength);
+                        copyStart = match;
+                        copyLength = length;
+                    }
+                } else {
+                    flushCopy(out, copyStart, copyLength);
+                    copyStart = -1;
+                    copyLength = 0;
+                    literal.write(block.array(), 0, length);
+                    if (literal.size() >= MAX_LITERAL) {
+                        literalBytes += flushData(out, literal);
+                    }
+                }
+            }
+            flushCopy(out, copyStart, copyLength);
+            literalBytes += flushData(out, literal);
+            out.writeByte(END);
+            return literalBytes;
+        }
+    }
+
+    /**
+     * Rebuilds the target from the base and a patch, as tablets do, and returns the target hash the patch names.
+     */
+    public static String apply(File base, InputStream patch, File target) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(patch));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a delta");
+        }
+        in.readUTF();
+        String targetHash = in.readUTF();
+        long targetLength = in.readLong();
+        try (FileChannel baseIn = FileChannel.open(base.toPath(), READ);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            ByteBuffer buf = ByteBuffer.allocate(DEFAULT_BLOCK_SIZE);
+            long written = 0;
+            for (byte op = in.readByte(); op != END; op = in.readByte()) {
+                if (op == COPY) {
+                    long offset = in.readLong(), length = in.readLong();
+                    for (long end = offset + length; offset < end; ) {
+                        buf.limit((int) Math.min(buf.capacity(), end - offset));
+                        int read = baseIn.read(buf, offset);
+                        if (read < 0) {
+                            throw new EOFException("copy beyond end of base");
+                        }
+                        out.write(buf.array(), 0, read);
+                        offset += read;
+                        buf.clear();
+                    }
+                    written += length;
+                } else if (op == DATA) {
+                    long length = in.readLong();
+                    for (long left = length; left > 0; ) {
+                        int read = in.read(buf.array(), 0, (int) Math.min(buf.capacity(), left));
+                        if (read < 0) {
+                            throw new EOFException("patch truncated");
+                        }
+                        out.write(buf.array(), 0, read);
+                        left -= read;
+                    }
+                    written += length;
+                } else {
+                    throw new IOException("bad delta operation " + op);
+                }
+            }
+            if (written != targetLength) {
+                throw new IOException("delta produced " + written + " bytes, expected " + targetLength);
+            }
+        }
+        return targetHash;
+    }
+
+    private static int blockSize(FileChannel db) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(18);
+        if (read(db, 0, header) == header.capacity()) {
+            byte[] magic = new byte[SQLITE_MAGIC.length];
+            header.get(magic);
+            if (Arrays.equals(magic, SQLITE_MAGIC)) {
+                int pageSize = header.getShort(16) & 0xffff;
+                return pageSize == 1 ? 65536 : pageSize;
+            }
+        }
+        return DEFAULT_BLOCK_SIZE;
+    }
+
+    private static Map<ByteBuffer, Long> index(FileChannel base, int blockSize) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        Map<ByteBuffer, Long> index = new HashMap<>();
+        long size = base.size();
+        for (long position = 0; position + blockSize <= size; position += blockSize) {
+            read(base, position, block);
+            index.putIfAbsent(hash(digest, block), position);
+        }
+        return index;
+    }
+
+    private static ByteBuffer hash(MessageDigest digest, ByteBuffer block) {
+        digest.update(block.array(), 0, block.limit());
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    private static int read(FileChannel in, long position, ByteBuffer buf) throws IOException {
+        buf.clear();
+        while (buf.hasRemaining()) {
+            if (in.read(buf, position + buf.position()) < 0) {
+                break;
+            }
+        }
+        buf.flip();
+        return buf.limit();
+    }
+
+    private static void flushCopy(DataOutputStream out, long start, long length) throws IOException {
+        if (length > 0) {
+            out.writeByte(COPY);
+            out.writeLong(start);
+            out.writeLong(length);
+        }
+    }
+
+    private static long flushData(DataOutputStream out, ByteArrayOutputStream literal) throws IOException {
+        int length = literal.size();
+        if (length > 0) {
+            out.writeByte(DATA);
+            out.writeLong(length);
+            literal.writeTo(out);
+            literal.reset();
+        }
+        return length;
+    }
+}
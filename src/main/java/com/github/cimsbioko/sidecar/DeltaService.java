@@ -0,0 +1,122 @@
+package com.github.cimsbioko.sidecar;
+
+import com.github.cimsbioko.sidecar.events.CampaignRemoved;
+import com.github.cimsbioko.sidecar.events.ContentReady;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.nio.file.Files.deleteIfExists;
+
+/**
+ * Precomputes patches from the retained versions of each campaign's database to the current content, so tablets one
+ * or two versions behind can download a small {@link Delta} instead of the whole database.
+ */
+@Component
+public class DeltaService {
+
+    private static final Logger log = LoggerFactory.getLogger(DeltaService.class);
+
+    private static final String DELTAS_CREATED_METRIC = "deltas.created";
+    private static final String DELTAS_DISCARDED_METRIC = "deltas.discarded";
+
+    @Autowired
+    private FileSystem fs;
+
+    @Autowired
+    private CounterService counters;
+
+    @Autowired
+    private VersionStore versions;
+
+    @Value("${app.delta.max-ratio}")
+    private double maxRatio;
+
+    public File getDelta(Campaign campaign, String fromHash, Content current) {
+        File delta = fs.getDelta(campaign, fromHash, current.getContentHash());
+        return delta.exists() ? delta : null;
+    }
+
+    @EventListener
+    public void onContentReady(ContentReady event) {
+        Campaign campaign = event.getCampaign();
+        Content current = event.getContent();
+        try {
+            createDeltas(campaign, current);
+        } catch (IOException e) {
+            log.warn("failed to prepare deltas for " + campaign.getUuid(), e);
+        }
+    }
+
+    @EventListener
+    public void onCampaignRemoved(CampaignRemoved event) throws IOException {
+        Campaign campaign = event.getCampaign();
+        deleteDir(fs.getDeltaDir(campaign));
+    }
+
+    private void createDeltas(Campaign campaign, Content current) throws IOException {
+        String currentHash = current.getContentHash();
+        for (Path stale : list(fs.getDeltaDir(campaign))) {
+            if (!stale.getFileName().toString().endsWith("-" + currentHash + ".delta")) {
+                deleteIfExists(stale);
+            }
+        }
+        for (File version : versions.getVersions(campaign)) {
+            String baseHash = version.getName().replaceFirst("\\.db$", "");
+            File delta = fs.getDelta(campaign, baseHash, currentHash);
+            if (baseHash.equals(currentHash) || delta.exists()) {
+                continue;
+            }
+            Files.createDirectories(fs.getDeltaDir(campaign));
+            File temp = new File(delta.getPath() + ".tmp");
+            try {
+                long literal = Delta.create(version, baseHash, current.getContentFile(), currentHash, temp);
+                if (literal > current.getContentFile().length() * maxRatio) {
+                    log.info("delta from {} to {} not worthwhile ({} literal bytes)", baseHash, currentHash, literal);
+                    counters.increment(DELTAS_DISCARDED_METRIC);
+                } else if (temp.renameTo(delta)) {
+                    log.info("created delta from {} to {} ({} bytes)", baseHash, currentHash, delta.length());
+                    counters.increment(DELTAS_CREATED_METRIC);
+                }
+            } catch (Exception e) {
+                log.warn("failed to create delta from " + baseHash, e);
+            } finally {
+                deleteIfExists(temp.toPath());
+            }
+        }
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        List<Path> result = new ArrayList<>();
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                entries.forEach(result::add);
+            }
+        }
+        return result;
+    }
+
+    private static void deleteDir(Path dir) throws IOException {
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> entries = Files.walk(dir)) {
+                for (Path p : (Iterable<Path>) entries.sorted(Comparator.reverseOrder())::iterator) {
+                    deleteIfExists(p);
+                }
+            }
+        }
+    }
+}
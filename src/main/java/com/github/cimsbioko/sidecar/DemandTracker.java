@@ -0,0 +1,183 @@
+package com.github.cimsbioko.sidecar;
+
+import com.github.cimsbioko.sidecar.events.CampaignRemoved;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks how much tablets want each campaign, so the campaigns they are waiting on sync first. Demand is the rate of
+ * requests, decaying with the configured half-life, with requests from tablets that are behind or find no content at
+ * all counting extra. A campaign's sync priority grows with both its demand and how long since upstream last
+ * confirmed its content is current, unless an operator has pinned it. Campaigns not yet checked since startup count
+ * as stale as any, and campaigns with tablets held waiting for their content go before all others until their update
+ * ends.
+ */
+@Component
+public class DemandTracker {
+
+    private static final double STALE_WEIGHT = 2, MISSING_WEIGHT = 4;
+    private static final double MAX_STALE_DAYS = 7;
+
+    enum Outcome {
+        NOT_MODIFIED, STALE, DOWNLOAD, MISSING
+    }
+
+    @Autowired
+    private CampaignLanes lanes;
+
+    @Value("${app.demand.half-life}")
+    private long halfLife;
+
+    @Value("${app.demand.pinned}")
+    private String pinnedConfig;
+
+    private final Map<Campaign, Demand> demand = new ConcurrentHashMap<>();
+    private final Map<Campaign, Long> checked = new ConcurrentHashMap<>();
+    private final Map<String, Double> pinned = new ConcurrentHashMap<>();
+    private final Set<Campaign> boosted = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        for (String entry : pinnedConfig.split(",")) {
+            int eq = entry.indexOf('=');
+            if (eq > 0) {
+                pinned.put(entry.substring(0, eq).trim(), Double.parseDouble(entry.substring(eq + 1).trim()));
+            }
+        }
+        lanes.setPriority(this::getPriority);
+    }
+
+    public void record(Campaign campaign, Outcome outcome) {
+        demand.computeIfAbsent(campaign, c -> new Demand()).record(outcome, System.currentTimeMillis());
+    }
+
+    /**
+     * Pins the campaign's priority to the given value, or removes the pin if null.
+     */
+    public void pin(String uuid, Double priority) {
+        if (priority == null) {
+            pinned.remove(uuid);
+        } else {
+            pinned.put(uuid, priority);
+        }
+    }
+
+    /**
+     * Puts the campaign ahead of all others, pinned or not, until {@link #clearBoost} is called when its update ends.
+     */
+    public void boost(Campaign campaign) {
+        boosted.add(campaign);
+    }
+
+    public void clearBoost(Campaign campaign) {
+        boosted.remove(campaign);
+    }
+
+    public double getPriority(Campaign campaign) {
+        if (boosted.contains(campaign)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        Double pin = pinned.get(campaign.getUuid());
+        if (pin != null) {
+            return pin;
+        }
+        Demand d = demand.get(campaign);
+        return (1 + (d == null ? 0 : d.getWeight(System.currentTimeMillis()))) * (1 + getStaleDays(campaign));
+    }
+
+    private double getStaleDays(Campaign campaign) {
+        Long since = checked.get(campaign);
+        if (since == null) {
+            return MAX_STALE_DAYS;
+        }
+        return Math.min(MAX_STALE_DAYS, (System.currentTimeMillis() - since) / (double) TimeUnit.DAYS.toMillis(1));
+    }
+
+    /**
+     * Returns the campaigns, highest priority first.
+     */
+    public List<Campaign> byPriority(Iterable<Campaign> campaigns) {
+        List<Campaign> sorted = new ArrayList<>();
+        campaigns.forEach(sorted::add);
+        Map<Campaign, Double> priorities = new HashMap<>();
+        sorted.forEach(c -> priorities.put(c, getPriority(c)));
+        sorted.sort(Comparator.comparingDouble(priorities::get).reversed());
+        return sorted;
+    }
+
+    /**
+     * Records that upstream was just asked for the campaign's content and answered, whether or not it had changed.
+     */
+    public void checked(Campaign campaign) {
+        checked.put(campaign, System.currentTimeMillis());
+    }
+
+    @EventListener
+    public void onCampaignRemoved(CampaignRemoved event) {
+        demand.remove(event.getCampaign());
+        checked.remove(event.getCampaign());
+        boosted.remove(event.getCampaign());
+    }
+
+    public String getStatus(Iterable<Campaign> campaigns) {
+        StringBuilder status = new StringBuilder();
+        long now = System.currentTimeMillis();
+        for (Campaign campaign : byPriority(campaigns)) {
+            Demand d = demand.getOrDefault(campaign, new Demand());
+            status.append(String.format("%s (%s): priority %.2f%s, %.1f requests (%.0f%% not modified, %.0f%% stale, "
+                            + "%.0f%% missing), %.1f days since checked%n",
+                    campaign.getUuid(), campaign.getName(), getPriority(campaign),
+                    boosted.contains(campaign) ? " (boosted)" : pinned.containsKey(campaign.getUuid()) ? " (pinned)" : "",
+                    d.get(null, now),
+                    d.ratio(Outcome.NOT_MODIFIED, now) * 100, d.ratio(Outcome.STALE, now) * 100,
+                    d.ratio(Outcome.MISSING, now) * 100, getStaleDays(campaign)));
+        }
+        return status.toString();
+    }
+
+    /**
+     * Request counts that decay exponentially, so recent requests dominate.
+     */
+    private class Demand {
+
+        private final double[] counts = new double[Outcome.values().length];
+        private long last = System.currentTimeMillis();
+
+        synchronized void record(Outcome outcome, long now) {
+            decay(now);
+            counts[outcome.ordinal()]++;
+        }
+
+        synchronized double get(Outcome outcome, long now) {
+            decay(now);
+            return outcome != null ? counts[outcome.ordinal()] : Arrays.stream(counts).sum();
+        }
+
+        double ratio(Outcome outcome, long now) {
+            double total = get(null, now);
+            return total > 0 ? get(outcome, now) / total : 0;
+        }
+
+        double getWeight(long now) {
+            return get(null, now) + (STALE_WEIGHT - 1) * get(Outcome.STALE, now)
+                    + (MISSING_WEIGHT - 1) * get(Outcome.MISSING, now);
+        }
+
+        private void decay(long now) {
+            if (now > last && halfLife > 0) {
+                double factor = Math.pow(0.5, (now - last) / (double) halfLife);
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] *= factor;
+                }
+            }
+            last = Math.max(last, now);
+        }
+    }
+}
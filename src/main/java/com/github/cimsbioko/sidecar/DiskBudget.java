@@ -0,0 +1,158 @@
+package com.github.cimsbioko.sidecar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the data directory within the space available to it. Fetches are refused up front when the disk can not hold
+ * what they would write while leaving the configured reserve free, rather than failing once the card fills. Temporary
+ * files left behind by a process that died mid-sync are reclaimed at startup.
+ */
+@Component
+public class DiskBudget implements PublicMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(DiskBudget.class);
+
+    private static final String REFUSED_METRIC = "disk.refused";
+    private static final String RECLAIMED_METRIC = "disk.reclaimed";
+
+    private static final Pattern ORPHAN = Pattern.compile("(database-.*\\.db|metadata-.*\\.jrsmd|compressed-.*\\.gz|seed-.*\\.db)");
+    private static final String TEMP_EXT = ".tmp", PARTIAL_EXT = ".partial", JOURNAL_EXT = ".journal";
+
+    @Autowired
+    private CounterService counters;
+
+    @Value("${app.data.dir}")
+    private Path dataDir;
+
+    @Value("${app.disk.reserve}")
+    private long reserve;
+
+    @Value("${app.disk.preallocate}")
+    private boolean preallocate;
+
+    private volatile long reclaimed;
+
+    /**
+     * Removes files only a sync in progress could have been using. Runs before syncs start, so anything found is left
+     * over from before a restart. Partial transfers stay as long as their journal does, so they can be resumed.
+     */
+    @PostConstruct
+    public void reclaim() throws IOException {
+        if (!Files.isDirectory(dataDir)) {
+            return;
+        }
+        long bytes = 0;
+        int files = 0;
+        try (Stream<Path> entries = Files.walk(dataDir)) {
+            for (Path path : (Iterable<Path>) entries.filter(Files::isRegularFile)::iterator) {
+                if (isOrphan(path)) {
+                    long size = path.toFile().length();
+                    if (Files.deleteIfExists(path)) {
+                        log.info("reclaimed orphaned file {} ({} bytes)", path, size);
+                        counters.increment(RECLAIMED_METRIC);
+                        bytes += size;
+                        files++;
+                    }
+                }
+            }
+        }
+        reclaimed = bytes;
+        if (files > 0) {
+            log.info("reclaimed {} bytes in {} orphaned files", bytes, files);
+        }
+    }
+
+    private boolean isOrphan(Path path) {
+        String name = path.getFileName().toString();
+        if (name.endsWith(TEMP_EXT)) {
+            return true;  // range spools and files written before being renamed into place, anywhere under the data dir
+        } else if (!path.getParent().equals(dataDir)) {
+            return false;
+        } else if (name.endsWith(PARTIAL_EXT)) {
+            return !path.resolveSibling(name + JOURNAL_EXT).toFile().exists();
+        } else if (name.endsWith(PARTIAL_EXT + JOURNAL_EXT)) {
+            return !path.resolveSibling(name.substring(0, name.length() - JOURNAL_EXT.length())).toFile().exists();
+        }
+        return ORPHAN.matcher(name).matches();
+    }
+
+    public long getUsableSpace() {
+        return dataDir.toFile().getUsableSpace();
+    }
+
+    /**
+     * Ensures the given number of bytes can be written to the data directory while leaving the reserve free.
+     */
+    public void require(long bytes, String purpose) throws IOException {
+        long usable = getUsableSpace();
+        if (usable - bytes < reserve) {
+            counters.increment(REFUSED_METRIC);
+            throw new IOException(String.format("insufficient space for %s: needs %d bytes, %d usable with %d reserved",
+                    purpose, bytes, usable, reserve));
+        }
+    }
+
+    /**
+     * Extends a newly created file to the size it is expected to reach, so the filesystem can allocate it in one
+     * piece rather than a block at a time as it is written. Java can only do this by setting the length, which most
+     * Linux filesystems (ext4 included) record as a sparse file without allocating anything, while vfat zero-fills
+     * the whole file, writing it twice. It is off by default for that reason.
+     */
+    public void preallocate(File file, long size) {
+        if (preallocate && size > 0) {
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.setLength(size);
+            } catch (IOException e) {
+                log.debug("failed to preallocate {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes used by the data directory's files.
+     */
+    public long getUsed() throws IOException {
+        long used = 0;
+        if (Files.isDirectory(dataDir)) {
+            try (Stream<Path> entries = Files.walk(dataDir)) {
+                used = entries.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+            }
+        }
+        return used;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> result = new ArrayList<>();
+        File dir = dataDir.toFile();
+        result.add(new Metric<>("disk.total", dir.getTotalSpace()));
+        result.add(new Metric<>("disk.usable", dir.getUsableSpace()));
+        result.add(new Metric<>("disk.reserve", reserve));
+        result.add(new Metric<>("disk.reclaimed.bytes", reclaimed));
+        try {
+            result.add(new Metric<>("disk.used", getUsed()));
+        } catch (IOException e) {
+            log.debug("failed to measure data directory", e);
+        }
+        return result;
+    }
+}
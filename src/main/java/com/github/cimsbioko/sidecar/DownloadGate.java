@@ -0,0 +1,340 @@
+package com.github.cimsbioko.sidecar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for large downloads: caps concurrent transfers, bounds how many requests may wait for a slot,
+ * and optionally divides a configured bandwidth budget evenly between the clients currently downloading. Requests
+ * that support async processing wait without holding a server thread, and are dispatched again once a slot is handed
+ * to them.
+ */
+@Component
+public class DownloadGate {
+
+    private static final Logger log = LoggerFactory.getLogger(DownloadGate.class);
+
+    private static final String PERMIT_ATTR = DownloadGate.class.getName() + ".permit";
+    private static final String QUEUED_ATTR = DownloadGate.class.getName() + ".queued";
+
+    private final int maxConcurrent, maxQueued;
+    private final long maxWaitMillis, bandwidth;
+    private final int retryAfterSeconds;
+
+    private final Semaphore slots;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<String, AtomicInteger> clients = new ConcurrentHashMap<>();
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    public DownloadGate(@Value("${app.downloads.max-concurrent}") int maxConcurrent,
+                        @Value("${app.downloads.max-queued}") int maxQueued,
+                        @Value("${app.downloads.max-wait}") long maxWaitMillis,
+                        @Value("${app.downloads.retry-after}") int retryAfterSeconds,
+                        @Value("${app.downloads.bandwidth}") long bandwidth) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxWaitMillis = maxWaitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.bandwidth = bandwidth;
+        this.slots = new Semaphore(Math.max(1, maxConcurrent), true);
+    }
+
+    public boolean isEnabled() {
+        return maxConcurrent > 0;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Waits for a transfer slot, returning null if the wait queue is full or the wait timed out.
+     */
+    public Permit acquire(String client) throws InterruptedIOException {
+        if (!slots.tryAcquire()) {
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                return null;
+            }
+            try {
+                if (!slots.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for download slot");
+            } finally {
+                queued.decrementAndGet();
+            }
+        }
+        return grant(client);
+    }
+
+    /**
+     * Returns a transfer slot for the request, either free now or handed to it while it waited. Otherwise, if the
+     * request supports async processing and the wait queue has room, queues it and returns null with async started:
+     * the request is dispatched again when a slot is handed to it, or when its wait runs out. Returns null without
+     * starting async when the request should be told to retry later.
+     */
+    public Permit acquire(HttpServletRequest request, HttpServletResponse response) throws InterruptedIOException {
+        Permit handed = (Permit) request.getAttribute(PERMIT_ATTR);
+        if (handed != null) {
+            request.removeAttribute(PERMIT_ATTR);
+            return handed;
+        } else if (request.getAttribute(QUEUED_ATTR) != null) {
+            return null;  // waited once already, and the wait ran out
+        } else if (!request.isAsyncSupported()) {
+            return acquire(request.getRemoteAddr());
+        } else if (slots.tryAcquire()) {
+            return grant(request.getRemoteAddr());
+        } else if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return null;
+        }
+        request.setAttribute(QUEUED_ATTR, Boolean.TRUE);
+        AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(maxWaitMillis);
+        Waiter waiter = new Waiter(request.getRemoteAddr(), context);
+        context.addListener(waiter);
+        waiters.add(waiter);
+        if (slots.tryAcquire()) {
+            handOff();  // a slot was freed while queueing, before anyone could hand it over
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the request has been dispatched again after waiting for a slot.
+     */
+    public boolean wasQueued(HttpServletRequest request) {
+        return request.getAttribute(QUEUED_ATTR) != null;
+    }
+
+    private Permit grant(String client) {
+        clients.computeIfAbsent(client, k -> new AtomicInteger()).incrementAndGet();
+        return new Permit(client);
+    }
+
+    /**
+     * Gives a freed slot to the longest waiting request still waiting, or back to the pool if there is none.
+     */
+    private void handOff() {
+        Waiter waiter;
+        while ((waiter = waiters.poll()) != null) {
+            if (waiter.claim()) {
+                Permit permit = grant(waiter.client);
+                try {
+                    waiter.context.getRequest().setAttribute(PERMIT_ATTR, permit);
+                    waiter.context.dispatch();
+                } catch (IllegalStateException e) {
+                    log.debug("waiting request already ended", e);
+                    permit.close();  // passes the slot on
+                }
+                return;
+            }
+        }
+        slots.release();
+    }
+
+    public int getActive() {
+        return maxConcurrent - slots.availablePermits();
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    private long getClientRate(String client) {
+        AtomicInteger transfers = clients.get(client);
+        int clientCount = Math.max(1, clients.size()), clientTransfers = transfers == null ? 1 : Math.max(1, transfers.get());
+        return bandwidth / clientCount / clientTransfers;
+    }
+
+    public class Permit implements AutoCloseable {
+
+        private final String client;
+        private int holds = 1;
+
+        private Permit(String client) {
+            this.client = client;
+        }
+
+        public boolean isThrottled() {
+            return bandwidth > 0;
+        }
+
+        public OutputStream throttle(OutputStream out) {
+            return isThrottled() ? new ThrottledOutputStream(out, new Throttle(client)) : out;
+        }
+
+        /**
+         * Returns a pacer for transfers that can not block while throttled, or null if transfers are not throttled.
+         */
+        public Throttle throttle() {
+            return isThrottled() ? new Throttle(client) : null;
+        }
+
+        /**
+         * Adds a holder, so the slot is only released once every holder has closed the permit. This lets a transfer
+         * outlive the request handler that admitted it.
+         */
+        public synchronized Permit share() {
+            if (holds > 0) {
+                holds++;
+            }
+            return this;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (holds > 0 && --holds == 0) {
+                clients.computeIfPresent(client, (k, count) -> count.decrementAndGet() > 0 ? count : null);
+                handOff();
+            }
+        }
+    }
+
+    /**
+     * A request waiting for a slot without a thread. Whichever of hand-off, timeout and error claims it first decides
+     * how it ends.
+     */
+    private class Waiter implements AsyncListener {
+
+        private final String client;
+        private final AsyncContext context;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        Waiter(String client, AsyncContext context) {
+            this.client = client;
+            this.context = context;
+        }
+
+        boolean claim() {
+            if (claimed.compareAndSet(false, true)) {
+                queued.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            if (claim()) {
+                waiters.remove(this);
+                context.dispatch();  // answered as refused, since no permit was handed to it
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            if (claim()) {
+                waiters.remove(this);
+            }
+        }
+
+        /**
+         * Returns a handed slot the dispatched request ended without taking, such as when it was answered 304.
+         */
+        @Override
+        public void onComplete(AsyncEvent event) {
+            Permit untaken = (Permit) event.getSuppliedRequest().getAttribute(PERMIT_ATTR);
+            if (untaken != null) {
+                event.getSuppliedRequest().removeAttribute(PERMIT_ATTR);
+                untaken.close();
+            }
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);  // still there to return an untaken slot
+        }
+    }
+
+    public class Throttle {
+
+        static final int CHUNK = 16 * 1024;
+
+        private final String client;
+        private long last = System.nanoTime();
+        private double allowance;  // bytes that may be sent, accumulated at the client's current fair share
+
+        private Throttle(String client) {
+            this.client = client;
+        }
+
+        /**
+         * Takes the bytes (at most {@link #CHUNK} * 4) from the allowance and returns 0, or returns how many
+         * nanoseconds to wait before the allowance could cover them.
+         */
+        public long take(int bytes) {
+            long now = System.nanoTime();
+            allowance = Math.min(allowance + (now - last) / 1e9 * getClientRate(client), CHUNK * 4);
+            last = now;
+            if (allowance >= bytes) {
+                allowance -= bytes;
+                return 0;
+            }
+            long rate = Math.max(1, getClientRate(client));
+            return (long) ((bytes - allowance) / rate * 1e9);
+        }
+    }
+
+    private static class ThrottledOutputStream extends FilterOutputStream {
+
+        private final Throttle throttle;
+
+        ThrottledOutputStream(OutputStream out, Throttle throttle) {
+            super(out);
+            this.throttle = throttle;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunk = Math.min(len, Throttle.CHUNK);
+                pace(chunk);
+                out.write(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            pace(1);
+            out.write(b);
+        }
+
+        private void pace(int bytes) throws IOException {
+            try {
+                long wait;
+                while ((wait = throttle.take(bytes)) > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while throttling");
+            }
+        }
+    }
+}
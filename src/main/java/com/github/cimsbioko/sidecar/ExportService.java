@@ -0,0 +1,126 @@
+package com.github.cimsbioko.sidecar;
+
+import com.github.cimsbioko.sidecar.events.CampaignRemoved;
+import com.github.cimsbioko.sidecar.events.ContentReady;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.github.cimsbioko.sidecar.Compressor.GZIP_HEADER_SIZE;
+import static com.github.cimsbioko.sidecar.Compressor.GZIP_TRAILER_SIZE;
+
+/**
+ * Prepares browser export archives when content is published. The archive's single deflated entry is the deflate
+ * stream already stored inside the content's gzip variant, so only the zip headers are generated and the archive
+ * can be served straight from disk with a known length.
+ */
+@Component
+public class ExportService {
+
+    private static final Logger log = LoggerFactory.getLogger(ExportService.class);
+
+    static final String INSTALLABLE_FILENAME = "openhds.db";
+
+    private static final long ZIP32_LIMIT = 0xffffffffL;
+
+    private final Map<Campaign, Export> exports = new ConcurrentHashMap<>();
+
+    public Body getArchive(Campaign campaign, Content content) {
+        Export export = exports.get(campaign);
+        return export != null && export.hash.equals(content.getContentHash()) ? export.archive : null;
+    }
+
+    @EventListener
+    public void onContentReady(ContentReady event) {
+        Campaign campaign = event.getCampaign();
+        Content content = event.getContent();
+        exports.remove(campaign);
+        try {
+            Body archive = buildArchive(content);
+            if (archive != null) {
+                exports.put(campaign, new Export(content.getContentHash(), archive));
+                log.info("export archive ready {} ({}), {} bytes", campaign.getUuid(), campaign.getName(), archive.length());
+            }
+        } catch (IOException e) {
+            log.warn("failed to prepare export for " + campaign.getUuid(), e);
+        }
+    }
+
+    @EventListener
+    public void onCampaignRemoved(CampaignRemoved event) {
+        exports.remove(event.getCampaign());
+    }
+
+    private static Body buildArchive(Content content) throws IOException {
+        File db = content.getContentFile(), gzip = content.getCompressedContentFile();
+        if (gzip == null || !gzip.exists()) {
+            return null;
+        }
+        long size = db.length(), compressedSize = gzip.length() - GZIP_HEADER_SIZE - GZIP_TRAILER_SIZE;
+        if (size > ZIP32_LIMIT || compressedSize > ZIP32_LIMIT) {
+            return null;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(GZIP_TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try (RandomAccessFile in = new RandomAccessFile(gzip, "r")) {
+            in.seek(gzip.length() - GZIP_TRAILER_SIZE);
+            in.readFully(trailer.array());
+        }
+        int crc = trailer.getInt(0), isize = trailer.getInt(4);
+        if (isize != (int) size) {
+            return null;  // compressed variant does not match the content
+        }
+
+        byte[] name = INSTALLABLE_FILENAME.getBytes(StandardCharsets.UTF_8);
+        int dosTime = dosTime(db.lastModified());
+
+        ByteBuffer local = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        local.putInt(0x04034b50).putShort((short) 20).putShort((short) 0).putShort((short) 8)
+                .putInt(dosTime).putInt(crc).putInt((int) compressedSize).putInt((int) size)
+                .putShort((short) name.length).putShort((short) 0).put(name);
+
+        ByteBuffer central = ByteBuffer.allocate(46 + name.length + 22).order(ByteOrder.LITTLE_ENDIAN);
+        central.putInt(0x02014b50).putShort((short) 20).putShort((short) 20).putShort((short) 0).putShort((short) 8)
+                .putInt(dosTime).putInt(crc).putInt((int) compressedSize).putInt((int) size)
+                .putShort((short) name.length).putShort((short) 0).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 0).putInt(0).putInt(0).put(name);
+        long centralOffset = local.capacity() + compressedSize;
+        central.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) 1).putShort((short) 1)
+                .putInt(46 + name.length).putInt((int) centralOffset).putShort((short) 0);
+
+        return new Body.Builder()
+                .add(local.array())
+                .add(gzip, GZIP_HEADER_SIZE, compressedSize)
+                .add(central.array())
+                .build();
+    }
+
+    private static int dosTime(long millis) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(millis);
+        int year = Math.max(1980, c.get(Calendar.YEAR));
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    private static class Export {
+
+        private final String hash;
+        private final Body archive;
+
+        Export(String hash, Body archive) {
+            this.hash = hash;
+            this.archive = archive;
+        }
+    }
+}
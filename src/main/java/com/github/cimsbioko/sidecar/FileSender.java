@@ -0,0 +1,317 @@
+package com.github.cimsbioko.sidecar;
+
+import com.codahale.metrics.MetricRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Collections.emptyList;
+
+/**
+ * Streams files to clients without a user-space copy where possible: Tomcat's sendfile support for ungated downloads
+ * when the connector offers it, otherwise {@link java.nio.channels.FileChannel#transferTo}. Honors byte ranges so
+ * interrupted downloads can resume and tablets can fetch just the blocks they are missing, merging nearby spans into
+ * fewer, larger reads.
+ */
+@Component
+public class FileSender {
+
+    static final String RANGE = "Range";
+    private static final String IF_RANGE = "If-Range";
+    private static final String ACCEPT_RANGES = "Accept-Ranges";
+    private static final String CONTENT_RANGE = "Content-Range";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String BYTES = "bytes";
+    private static final String MULTIPART_BYTERANGES = "multipart/byteranges; boundary=";
+    private static final Pattern RANGE_SPEC = Pattern.compile("(\\d+)-(\\d*)|-(\\d+)");
+
+    private static final String BYTES_METRIC = "meter.downloads.bytes";
+    private static final String THROUGHPUT_METRIC = "histogram.downloads.throughput";
+    private static final String TRANSFER_TIMER = "timer.downloads.transfer";
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    @Autowired
+    private GaugeService gauges;
+
+    @Autowired
+    private MetricRegistry metrics;
+
+    @Value("${app.downloads.async}")
+    private boolean async;
+
+    @Value("${app.ranges.max}")
+    private int maxRanges;
+
+    @Value("${app.ranges.merge-gap}")
+    private long mergeGap;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "throttle");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public void send(File file, String mimeType, String encoding, String eTag,
+                     HttpServletRequest request, HttpServletResponse response) throws IOException {
+        send(Body.of(file), mimeType, encoding, eTag, request, response);
+    }
+
+    public void send(Body body, String mimeType, String encoding, String eTag,
+                     HttpServletRequest request, HttpServletResponse response) throws IOException {
+        send(body, mimeType, encoding, eTag, null, request, response);
+    }
+
+    public void send(Body body, String mimeType, String encoding, String eTag, DownloadGate.Permit permit,
+                     HttpServletRequest request, HttpServletResponse response) throws IOException {
+        send(body, mimeType, encoding, eTag, permit, null, request, response);
+    }
+
+    /**
+     * Sends the body while holding the given download permit and version lease. Gated and leased transfers are always
+     * written by this sender rather than with sendfile, which completes out of sight, so the slot and version stay
+     * taken until the last byte is handed to the connector; when async output is enabled the transfer continues after
+     * this returns, holding its own shares of them. Other bodies held in memory are written directly, since they
+     * are small and async output would only add a copy through the heap.
+     */
+    public void send(Body body, String mimeType, String encoding, String eTag, DownloadGate.Permit permit,
+                     VersionStore.Lease lease, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+
+        long length = body.length();
+        Body content = body;
+
+        response.setContentType(mimeType);
+        // ranges only address the identity encoding, so an encoded body is always sent whole
+        if (encoding != null) {
+            response.setHeader(CONTENT_ENCODING, encoding);
+        } else {
+            response.setHeader(ACCEPT_RANGES, BYTES);
+        }
+
+        String range = encoding == null ? request.getHeader(RANGE) : null, ifRange = request.getHeader(IF_RANGE);
+        List<long[]> spans = range != null && (ifRange == null || ifRange.equals(quote(eTag)))
+                ? parseRanges(range, length, mergeGap, maxRanges) : emptyList();
+        if (spans == null) {
+            response.setHeader(CONTENT_RANGE, BYTES + " */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        } else if (!spans.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            if (spans.size() == 1) {
+                long[] span = spans.get(0);
+                response.setHeader(CONTENT_RANGE, contentRange(span, length));
+                content = body.slice(span[0], span[1]);
+            } else {
+                String boundary = UUID.randomUUID().toString();
+                response.setContentType(MULTIPART_BYTERANGES + boundary);
+                content = multipart(body, spans, mimeType, boundary);
+            }
+        }
+
+        response.setContentLengthLong(content.length());
+
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+
+        Body.Segment region = content.getFileRegion();
+        metrics.meter(BYTES_METRIC).mark(content.length());
+        if (permit == null && lease == null && region != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, region.getFile().getCanonicalPath());
+            request.setAttribute(SENDFILE_START, region.getOffset());
+            request.setAttribute(SENDFILE_END, region.getOffset() + region.getLength());
+        } else if (async && request.isAsyncSupported() && (permit != null || lease != null || !content.isInMemory())) {
+            long began = System.currentTimeMillis(), sent = content.length();
+            AsyncBodyWriter.start(content, permit, lease, request, response, timer,
+                    () -> recordTransfer(sent, System.currentTimeMillis() - began));
+        } else {
+            long began = System.currentTimeMillis();
+            content.writeTo(permit != null ? permit.throttle(response.getOutputStream()) : response.getOutputStream());
+            recordTransfer(content.length(), System.currentTimeMillis() - began);
+        }
+    }
+
+    /**
+     * Records the time and rate of a transfer written by this sender. Sendfile transfers complete out of sight, so
+     * only their bytes are counted.
+     */
+    private void recordTransfer(long bytes, long elapsed) {
+        gauges.submit(TRANSFER_TIMER, elapsed);
+        if (elapsed > 0) {
+            gauges.submit(THROUGHPUT_METRIC, bytes * 1000.0 / elapsed);
+        }
+    }
+
+    /**
+     * Composes a multipart/byteranges body from the given spans of the body, without copying the spans themselves.
+     */
+    private static Body multipart(Body body, List<long[]> spans, String mimeType, String boundary) {
+        long length = body.length();
+        Body.Builder builder = new Body.Builder();
+        for (long[] span : spans) {
+            builder.add(ascii("\r\n--" + boundary + "\r\nContent-Type: " + mimeType
+                    + "\r\n" + CONTENT_RANGE + ": " + contentRange(span, length) + "\r\n\r\n"));
+            builder.add(body.slice(span[0], span[1]));
+        }
+        return builder.add(ascii("\r\n--" + boundary + "--\r\n")).build();
+    }
+
+    /**
+     * Returns the sorted [start, end) bounds of the satisfiable spans of a byte range, or null if there are none. A
+     * header that is not a valid byte range is ignored, as if absent, so yields no spans at all. Overlapping spans and
+     * those no more than mergeGap apart are merged, since sending the bytes between them costs less than another part.
+     * If more than maxRanges (when positive) remain, the closest spans are merged until within the limit.
+     */
+    static List<long[]> parseRanges(String header, long length, long mergeGap, int maxRanges) {
+        if (!header.startsWith(BYTES + "=")) {
+            return emptyList();
+        }
+        List<long[]> spans = new ArrayList<>();
+        boolean valid = false;
+        for (String spec : header.substring(BYTES.length() + 1).split(",")) {
+            if (spec.trim().isEmpty()) {
+                continue;  // empty list elements are allowed
+            } else if (!isValidSpec(spec.trim())) {
+                return emptyList();
+            }
+            valid = true;
+            long[] bounds = parseRange(BYTES + "=" + spec.trim(), length);
+            if (bounds != null) {
+                spans.add(bounds);
+            }
+        }
+        if (!valid) {
+            return emptyList();
+        } else if (spans.isEmpty()) {
+            return null;
+        }
+        spans.sort(Comparator.comparingLong(span -> span[0]));
+        List<long[]> merged = merge(spans, mergeGap);
+        if (maxRanges > 0 && merged.size() > maxRanges) {
+            merged = limit(merged, maxRanges);
+        }
+        return merged;
+    }
+
+    /**
+     * Merges the spans separated by the smallest gaps until only the given number remain.
+     */
+    private static List<long[]> limit(List<long[]> sorted, int count) {
+        Integer[] gaps = new Integer[sorted.size() - 1];
+        for (int i = 0; i < gaps.length; i++) {
+            gaps[i] = i;
+        }
+        Arrays.sort(gaps, Comparator.comparingLong(i -> sorted.get(i + 1)[0] - sorted.get(i)[1]));
+        boolean[] closed = new boolean[gaps.length];
+        for (int i = 0; i < sorted.size() - count; i++) {
+            closed[gaps[i]] = true;
+        }
+        List<long[]> merged = new ArrayList<>();
+        long[] last = null;
+        for (int i = 0; i < sorted.size(); i++) {
+            if (last != null && closed[i - 1]) {
+                last[1] = sorted.get(i)[1];
+            } else {
+                last = sorted.get(i);
+                merged.add(last);
+            }
+        }
+        return merged;
+    }
+
+    private static List<long[]> merge(List<long[]> sorted, long gap) {
+        List<long[]> merged = new ArrayList<>();
+        long[] last = null;
+        for (long[] span : sorted) {
+            if (last != null && span[0] - last[1] <= gap) {
+                last[1] = Math.max(last[1], span[1]);
+            } else {
+                last = new long[]{span[0], span[1]};
+                merged.add(last);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns whether a single range spec is well formed: a first position with an optional last one no smaller, or a
+     * suffix length.
+     */
+    private static boolean isValidSpec(String spec) {
+        Matcher m = RANGE_SPEC.matcher(spec);
+        return m.matches() && (m.group(2) == null || m.group(2).isEmpty()
+                || new BigInteger(m.group(1)).compareTo(new BigInteger(m.group(2))) <= 0);
+    }
+
+    /**
+     * Returns the [start, end) bounds of a range with a single spec, such as bytes=0-99, or null when it can not be
+     * satisfied or is malformed. {@link #parseRanges} calls it for each spec of a header in turn.
+     */
+    static long[] parseRange(String header, long length) {
+        if (!header.startsWith(BYTES + "=")) {
+            return null;
+        }
+        String spec = header.substring(BYTES.length() + 1).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim(), last = spec.substring(dash + 1).trim();
+            long start, end;
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length : Math.min(length, Long.parseLong(last) + 1);
+            }
+            return start < end ? new long[]{start, end} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String contentRange(long[] span, long length) {
+        return String.format("%s %d-%d/%d", BYTES, span[0], span[1] - 1, length);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private static String quote(String eTag) {
+        return "\"" + eTag + "\"";
+    }
+}
@@ -10,6 +10,9 @@ import java.nio.file.Path;
 @Component
 public class FileSystem {
 
+    private static final String GZIP_EXT = ".gz", PARTIAL_EXT = ".partial", JOURNAL_EXT = ".journal";
+    private static final String VERSIONS_DIR = "versions", DELTAS_DIR = "deltas", VERSION_INDEX = "retained";
+
     @Value("${app.data.dir}")
     private Path dataDir;
 
@@ -28,4 +31,60 @@ public class FileSystem {
     public String getMetadataFilename(Campaign campaign) {
         return campaign.getUuid() + ".db." + Metadata.FILE_EXT;
     }
+
+    public File getVerificationRecord(Campaign campaign) {
+        return dataDir.resolve(getContentFilename(campaign) + ".verified").toFile();
+    }
+
+    public Path getVersionsDir() {
+        return dataDir.resolve(VERSIONS_DIR);
+    }
+
+    public Path getVersionDir(Campaign campaign) {
+        return getVersionsDir().resolve(campaign.getUuid());
+    }
+
+    public File getVersion(Campaign campaign, String hash) {
+        return getVersionDir(campaign).resolve(hash + ".db").toFile();
+    }
+
+    public File getVersionIndex(Campaign campaign) {
+        return getVersionDir(campaign).resolve(VERSION_INDEX).toFile();
+    }
+
+    public File getVersionMetadata(Campaign campaign, String hash) {
+        return getVersionDir(campaign).resolve(hash + ".db." + Metadata.FILE_EXT).toFile();
+    }
+
+    public File getCompressedVersion(Campaign campaign, String hash) {
+        return getVersionDir(campaign).resolve(hash + ".db" + GZIP_EXT).toFile();
+    }
+
+    public File getCompressedVersionMetadata(Campaign campaign, String hash) {
+        return getVersionDir(campaign).resolve(hash + ".db." + Metadata.FILE_EXT + GZIP_EXT).toFile();
+    }
+
+    public Path getDeltaDir(Campaign campaign) {
+        return dataDir.resolve(DELTAS_DIR).resolve(campaign.getUuid());
+    }
+
+    public File getDelta(Campaign campaign, String fromHash, String toHash) {
+        return getDeltaDir(campaign).resolve(fromHash + "-" + toHash + ".delta").toFile();
+    }
+
+    public File getPartialContent(Campaign campaign) {
+        return dataDir.resolve(getContentFilename(campaign) + PARTIAL_EXT).toFile();
+    }
+
+    public File getTransferJournal(Campaign campaign) {
+        return dataDir.resolve(getContentFilename(campaign) + PARTIAL_EXT + JOURNAL_EXT).toFile();
+    }
+
+    public File getCompressedContent(Campaign campaign) {
+        return dataDir.resolve(getContentFilename(campaign) + GZIP_EXT).toFile();
+    }
+
+    public File getCompressedMetadata(Campaign campaign) {
+        return dataDir.resolve(getMetadataFilename(campaign) + GZIP_EXT).toFile();
+    }
 }
@@ -2,20 +2,32 @@ package com.github.cimsbioko.sidecar;
 
 import com.github.batkinson.jrsync.Metadata;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.metrics.CounterService;
 import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import static com.github.cimsbioko.sidecar.Application.CACHED_FILES_PATH;
+import static com.github.cimsbioko.sidecar.ExportService.INSTALLABLE_FILENAME;
+import static com.github.cimsbioko.sidecar.FileSender.RANGE;
 
 @Controller
 public class MobileDatabaseEndpoint {
@@ -26,16 +38,34 @@ public class MobileDatabaseEndpoint {
     private static final String DB_NOT_MODIFIED_METRIC = "downloads.notmodified";
     private static final String METADATA_METRIC = "downloads.metadata";
     private static final String DATABASE_METRIC = "downloads.database";
+    private static final String COMPRESSED_METRIC = "downloads.compressed";
+    private static final String DELTA_METRIC = "downloads.delta";
     private static final String EXPORTS_METRIC = "exports";
     private static final String EXPORTS_NO_CONTENT_METRIC = "exports.nocontent";
     private static final String EXPORTS_NOT_READABLE_METRIC = "exports.notreadable";
     private static final String EXPORTS_FINISHED_METRIC = "exports.finished";
+    private static final String EXPORTS_CACHED_METRIC = "exports.cached";
+    private static final String DB_REJECTED_METRIC = "downloads.rejected";
+    private static final String DB_VERSION_METRIC = "downloads.version";
+    private static final String DB_HELD_METRIC = "downloads.held";
 
     private static final String ACCEPT = "Accept";
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_RANGE = "If-Range";
+    private static final String VARY = "Vary";
+    private static final String ETAG = "ETag";
+    private static final String RETRY_AFTER = "Retry-After";
+    private static final String CACHE_CONTROL = "Cache-Control";
+    private static final String CONTENT_LOCATION = "Content-Location";
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String GZIP = "gzip";
+    private static final String GZIP_TAG_SUFFIX = "-gz";
     private static final String MOBILEDB_PATH = "/api/rest/mobiledb/{campaign}";
     private static final String SQLITE_MIME_TYPE = "application/x-sqlite3";
     private static final String MOBILEDB_EXPORT_PATH = "/api/rest/mobiledb/{campaign}/export";
-    private static final String INSTALLABLE_FILENAME = "openhds.db";
+    private static final String MOBILEDB_VERSION_PATH = "/api/rest/mobiledb/{campaign}/versions/{hash}";
+    private static final Pattern HASH = Pattern.compile("[0-9a-fA-F]+");
 
     @Autowired
     private ContentService contentService;
@@ -46,48 +76,337 @@ public class MobileDatabaseEndpoint {
     @Autowired
     private CounterService counters;
 
-    @GetMapping("/update")
-    @ResponseBody
-    public String requestUpdate() {
-        contentService.requestUpdate();
+    @Autowired
+    private FileSender sender;
+
+    @Autowired
+    private DeltaService deltaService;
+
+    @Autowired
+    private ExportService exportService;
+
+    @Autowired
+    private DownloadGate gate;
+
+    @Autowired
+    private VersionStore versions;
+
+    @Autowired
+    private ContentCache cache;
+
+    @Autowired
+    private DemandTracker demand;
+
+    @Autowired
+    private ContentHolds holds;
+
+    @Value("${app.update.wait}")
+    private long updateWait;
+
+    /**
+     * Asks for the campaign (or all campaigns) to be checked for new content, answering with the result once known.
+     * Checks still running after the configured wait are reported as in progress with 202 Accepted.
+     */
+    @GetMapping(value = "/update", produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<List<UpdateCheck>>> requestUpdate(@RequestParam(required = false) String campaign) {
+        Map<Campaign, CompletableFuture<UpdateCheck>> checks;
+        if (campaign == null) {
+            checks = contentService.requestUpdate();
+        } else {
+            Optional<Campaign> c = campaignService.getCampaign(campaign);
+            Optional<CompletableFuture<UpdateCheck>> check = contentService.requestUpdate(campaign);
+            if (!c.isPresent() || !check.isPresent()) {
+                DeferredResult<ResponseEntity<List<UpdateCheck>>> missing = new DeferredResult<>();
+                missing.setResult(ResponseEntity.notFound().build());
+                return missing;
+            }
+            checks = Collections.singletonMap(c.get(), check.get());
+        }
         counters.increment(DB_UPDATES_METRIC);
-        return null;
+        DeferredResult<ResponseEntity<List<UpdateCheck>>> result = new DeferredResult<>(updateWait);
+        result.onTimeout(() -> result.setResult(ResponseEntity.status(HttpStatus.ACCEPTED).body(results(checks))));
+        CompletableFuture.allOf(checks.values().toArray(new CompletableFuture[0]))
+                .thenRun(() -> result.setResult(ResponseEntity.ok(results(checks))));
+        return result;
+    }
+
+    private List<UpdateCheck> results(Map<Campaign, CompletableFuture<UpdateCheck>> checks) {
+        List<UpdateCheck> results = new ArrayList<>();
+        checks.forEach((c, check) -> results.add(check.getNow(UpdateCheck.inProgress(c, contentService.getContent(c)))));
+        return results;
+    }
+
+    @GetMapping(value = MOBILEDB_PATH, produces = {SQLITE_MIME_TYPE, Metadata.MIME_TYPE, Delta.MIME_TYPE})
+    public void mobileDB(@PathVariable String campaign, ServletWebRequest request, HttpServletResponse response) throws IOException {
+
+        // held requests come back through here once released, already counted
+        boolean released = request.getRequest().getDispatcherType() == DispatcherType.ASYNC;
+        if (!released) {
+            counters.increment(DB_DOWNLOADS_METRIC);
+        }
+
+        Campaign c = campaignService.getCampaign(campaign).orElse(null);
+        Content content = c == null ? null : contentService.getContent(c);
+
+        if (content == null) {
+            // only a running update can produce the content, so requests are held for nothing else
+            if (c != null && !released) {
+                demand.record(c, DemandTracker.Outcome.MISSING);
+                if (contentService.requestMissing(c)) {
+                    demand.boost(c);
+                    boolean held = holds.hold(c, request.getRequest(), response);
+                    if (!contentService.isUpdating(c)) {
+                        demand.clearBoost(c);  // finished before the boost and hold took effect
+                        holds.release(c);
+                    }
+                    if (held) {
+                        counters.increment(DB_HELD_METRIC);
+                        return;
+                    }
+                }
+            }
+            counters.increment(DB_NO_CONTENT_METRIC);
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No content found.");
+            return;
+        }
+
+        if (notModified(content, request, response)) {
+            demand.record(c, DemandTracker.Outcome.NOT_MODIFIED);
+            counters.increment(DB_NOT_MODIFIED_METRIC);
+            return;
+        }
+        if (!gate.wasQueued(request.getRequest())) {
+            demand.record(c, request.getHeader(IF_NONE_MATCH) != null ? DemandTracker.Outcome.STALE : DemandTracker.Outcome.DOWNLOAD);
+        }
+        serve(c, content, true, request, response);
     }
 
-    @GetMapping(value = MOBILEDB_PATH, produces = {SQLITE_MIME_TYPE, Metadata.MIME_TYPE})
-    public String mobileDB(@PathVariable String campaign, WebRequest request) {
+    /**
+     * Serves a retained version of the content. The URL names the exact content, so responses may be cached for good.
+     */
+    @GetMapping(value = MOBILEDB_VERSION_PATH, produces = {SQLITE_MIME_TYPE, Metadata.MIME_TYPE})
+    public void mobileDBVersion(@PathVariable String campaign, @PathVariable String hash,
+                                ServletWebRequest request, HttpServletResponse response) throws IOException {
 
-        counters.increment(DB_DOWNLOADS_METRIC);
+        if (!gate.wasQueued(request.getRequest())) {
+            counters.increment(DB_VERSION_METRIC);
+        }
 
-        Content content = campaignService.getCampaign(campaign).map(contentService::getContent).orElse(null);
+        Campaign c = campaignService.getCampaign(campaign).orElse(null);
+        Content content = c == null || !isHash(hash) ? null : versions.getVersion(c, hash);
 
         if (content == null) {
             counters.increment(DB_NO_CONTENT_METRIC);
-            return null;
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such version.");
+            return;
         }
 
-        if (request.checkNotModified(content.getContentHash())) {
+        response.setHeader(CACHE_CONTROL, IMMUTABLE);
+        if (notModified(content, request, response)) {
             counters.increment(DB_NOT_MODIFIED_METRIC);
-            return null;
+            return;
         }
+        serve(c, content, false, request, response);
+    }
+
+    /**
+     * Answers 304 Not Modified if the request holds the content, under the tag of either of its encodings.
+     */
+    private static boolean notModified(Content content, ServletWebRequest request, HttpServletResponse response) {
+        String hash = content.getContentHash();
+        if (request.checkNotModified(hash)) {
+            return true;
+        }
+        if (heldHashes(request).contains(hash)) {
+            String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+            if (ifNoneMatch.contains(gzipTag(hash))) {
+                response.setHeader(ETAG, gzipTag(hash));
+            }
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Serves a delta, metadata or the database, whichever the request accepts. Only the current content offers
+     * deltas, and its metadata and database name the version they came from with Content-Location. Other versions
+     * may expire while they are sent, so they are leased until the transfer ends.
+     */
+    private void serve(Campaign campaign, Content content, boolean current, ServletWebRequest request,
+                       HttpServletResponse response) throws IOException {
 
         File metadata = content.getMetadataFile();
         String accept = request.getHeader(ACCEPT);
 
-        if (accept != null && accept.contains(Metadata.MIME_TYPE) && metadata.exists()) {
-            counters.increment(METADATA_METRIC);
-            return "forward:" + CACHED_FILES_PATH + "/" + metadata.getName();
+        try (VersionStore.Lease lease = versions.acquire(content)) {
+            if (lease == null) {
+                counters.increment(DB_NO_CONTENT_METRIC);
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such version.");
+                return;
+            }
+            VersionStore.Lease held = current ? null : lease;
+
+            response.setHeader(VARY, ACCEPT + ", " + ACCEPT_ENCODING + (current ? ", " + IF_NONE_MATCH : ""));
+
+            String base = current && accept != null && accept.contains(Delta.MIME_TYPE) ? findDeltaBase(campaign, content, request) : null;
+
+            if (base != null) {
+                counters.increment(DELTA_METRIC);
+                String eTag = base + "-" + content.getContentHash();
+                response.setHeader(ETAG, "\"" + eTag + "\"");
+                send(eTag, deltaService.getDelta(campaign, base, content), null, Delta.MIME_TYPE, true, null, request, response);
+            } else if (accept != null && accept.contains(Metadata.MIME_TYPE) && metadata.exists()) {
+                counters.increment(METADATA_METRIC);
+                setVersionLocation(campaign, content, current, response);
+                send(content.getContentHash(), metadata, content.getCompressedMetadataFile(), Metadata.MIME_TYPE, false, held, request, response);
+            } else {
+                counters.increment(DATABASE_METRIC);
+                setVersionLocation(campaign, content, current, response);
+                send(content.getContentHash(), content.getContentFile(), content.getCompressedContentFile(), SQLITE_MIME_TYPE, true, held, request, response);
+            }
+        }
+    }
+
+    private static void setVersionLocation(Campaign campaign, Content content, boolean current, HttpServletResponse response) {
+        if (current) {
+            response.setHeader(CONTENT_LOCATION, MOBILEDB_VERSION_PATH
+                    .replace("{campaign}", campaign.getUuid()).replace("{hash}", content.getContentHash()));
+        }
+    }
+
+    private void send(String eTag, File file, File compressed, String mimeType, boolean large, VersionStore.Lease lease,
+                      ServletWebRequest request, HttpServletResponse response) throws IOException {
+        Body body;
+        String encoding = null;
+        // ranges always address the identity encoding, so resumed downloads line up regardless of encoding; a resume
+        // validated against the gzip encoding can't be continued from identity bytes, so it starts over instead
+        boolean ranged = request.getHeader(RANGE) != null && !gzipTag(eTag).equals(request.getHeader(IF_RANGE));
+        if (compressed != null && compressed.exists() && acceptsGzip(request) && !ranged) {
+            counters.increment(COMPRESSED_METRIC);
+            body = cache.get(compressed);
+            encoding = GZIP;
+            response.setHeader(ETAG, gzipTag(eTag));
+            eTag += GZIP_TAG_SUFFIX;
+        } else {
+            body = cache.get(file);
+        }
+        if (large && gate.isEnabled()) {
+            try (DownloadGate.Permit permit = admit(request, response)) {
+                if (permit != null) {
+                    sender.send(body, mimeType, encoding, eTag, permit, lease, request.getRequest(), response);
+                }
+            }
+        } else {
+            sender.send(body, mimeType, encoding, eTag, null, lease, request.getRequest(), response);
         }
-        counters.increment(DATABASE_METRIC);
-        return "forward:" + CACHED_FILES_PATH + "/" + content.getContentFile().getName();
+    }
+
+    /**
+     * Takes a download slot, or returns null when there is none yet. The request is then either queued, to come back
+     * through its handler once it has a slot, or answered 503 with Retry-After.
+     */
+    private DownloadGate.Permit admit(ServletWebRequest request, HttpServletResponse response) throws IOException {
+        DownloadGate.Permit permit = gate.acquire(request.getRequest(), response);
+        if (permit == null && !request.getRequest().isAsyncStarted()) {
+            counters.increment(DB_REJECTED_METRIC);
+            response.setHeader(RETRY_AFTER, String.valueOf(gate.getRetryAfterSeconds()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many downloads, try again later.");
+        }
+        return permit;
+    }
+
+    /**
+     * Returns the held version a delta to the current content exists for, if any.
+     */
+    private String findDeltaBase(Campaign campaign, Content content, WebRequest request) {
+        for (String hash : heldHashes(request)) {
+            if (deltaService.getDelta(campaign, hash, content) != null) {
+                return hash;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the content hashes named by If-None-Match. A delta's tag names the version it produced, a gzip tag the
+     * version it encodes, and anything that is not a hash is ignored.
+     */
+    static List<String> heldHashes(WebRequest request) {
+        List<String> hashes = new ArrayList<>();
+        String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String eTag : ifNoneMatch.split(",")) {
+                String tag = eTag.trim().replaceFirst("^W/", "").replace("\"", "");
+                if (tag.endsWith(GZIP_TAG_SUFFIX)) {
+                    tag = tag.substring(0, tag.length() - GZIP_TAG_SUFFIX.length());
+                }
+                String hash = tag.substring(tag.indexOf('-') + 1);
+                if (isHash(hash)) {
+                    hashes.add(hash);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns the quoted tag of the gzip encoding of the content with the given tag. The encodings differ in their
+     * bytes, so they can't share a strong tag.
+     */
+    private static String gzipTag(String eTag) {
+        return "\"" + eTag + GZIP_TAG_SUFFIX + "\"";
+    }
+
+    static boolean isHash(String value) {
+        return value != null && HASH.matcher(value).matches();
+    }
+
+    private boolean acceptsGzip(WebRequest request) {
+        return acceptsGzip(request.getHeader(ACCEPT_ENCODING));
+    }
+
+    /**
+     * Returns whether an Accept-Encoding header allows gzip, either by name or through a wildcard, with a non-zero
+     * quality.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Double gzip = null, wildcard = null;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] params = entry.split(";");
+            String coding = params[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (GZIP.equals(coding) || ("x-" + GZIP).equals(coding)) {
+                gzip = quality;
+            } else if ("*".equals(coding)) {
+                wildcard = quality;
+            }
+        }
+        return gzip != null ? gzip > 0 : wildcard != null && wildcard > 0;
     }
 
     @GetMapping(MOBILEDB_EXPORT_PATH)
-    public void browserExport(@PathVariable String campaign, HttpServletResponse response) throws IOException {
+    public void browserExport(@PathVariable String campaign, ServletWebRequest request, HttpServletResponse response) throws IOException {
 
-        counters.increment(EXPORTS_METRIC);
+        if (!gate.wasQueued(request.getRequest())) {
+            counters.increment(EXPORTS_METRIC);
+        }
 
-        Content content = campaignService.getCampaign(campaign).map(contentService::getContent).orElse(null);
+        Campaign c = campaignService.getCampaign(campaign).orElse(null);
+        Content content = c == null ? null : contentService.getContent(c);
 
         if (content == null || content.getContentFile() == null || !content.getContentFile().exists()) {
             counters.increment(EXPORTS_NO_CONTENT_METRIC);
@@ -95,6 +414,34 @@ public class MobileDatabaseEndpoint {
             return;
         }
 
+        export(c, content, request, response);
+    }
+
+    private void export(Campaign c, Content content, ServletWebRequest request, HttpServletResponse response) throws IOException {
+
+        Body archive = exportService.getArchive(c, content);
+
+        if (archive != null && request.checkNotModified(content.getContentHash())) {
+            return;
+        }
+
+        try (DownloadGate.Permit permit = gate.isEnabled() ? admit(request, response) : null) {
+            if (gate.isEnabled() && permit == null) {
+                return;
+            }
+            if (archive != null) {
+                counters.increment(EXPORTS_CACHED_METRIC);
+                response.setHeader("Content-Disposition", "attachment; filename=" + INSTALLABLE_FILENAME + ".zip");
+                sender.send(archive, "application/zip", null, content.getContentHash(), permit, request.getRequest(), response);
+                counters.increment(EXPORTS_FINISHED_METRIC);
+            } else {
+                streamExport(content, permit, response);
+            }
+        }
+    }
+
+    private void streamExport(Content content, DownloadGate.Permit permit, HttpServletResponse response) throws IOException {
+
         FileSystemResource dbFileRes = new FileSystemResource(content.getContentFile());
 
         if (!dbFileRes.isReadable()) {
@@ -103,7 +450,8 @@ public class MobileDatabaseEndpoint {
         } else {
             response.setContentType("application/zip");
             response.setHeader("Content-Disposition", "attachment; filename=" + INSTALLABLE_FILENAME + ".zip");
-            try (ZipOutputStream zOut = new ZipOutputStream(response.getOutputStream())) {
+            OutputStream out = permit != null ? permit.throttle(response.getOutputStream()) : response.getOutputStream();
+            try (ZipOutputStream zOut = new ZipOutputStream(out)) {
                 ZipEntry e = new ZipEntry(INSTALLABLE_FILENAME);
                 e.setSize(dbFileRes.contentLength());
                 e.setTime(System.currentTimeMillis());
@@ -0,0 +1,151 @@
+package com.github.cimsbioko.sidecar;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Decides when each campaign is next polled upstream. A campaign that just changed is polled again after the minimum
+ * interval, and every poll that finds nothing new (or fails) doubles the interval up to the maximum. All delays are
+ * jittered so sidecars started together drift apart, and upstream Retry-After and cache lifetime headers can push the
+ * next poll back further.
+ */
+@Component
+public class PollSchedule {
+
+    private static final String RETRY_AFTER = "Retry-After", CACHE_CONTROL = "Cache-Control", EXPIRES = "Expires";
+
+    private final long minInterval, maxInterval;
+    private final double jitter;
+    private final Map<Campaign, State> states = new ConcurrentHashMap<>();
+
+    public PollSchedule(@Value("${app.poll.min-interval}") long minInterval,
+                        @Value("${app.poll.max-interval}") long maxInterval,
+                        @Value("${app.poll.jitter}") double jitter) {
+        this.minInterval = minInterval;
+        this.maxInterval = Math.max(minInterval, maxInterval);
+        this.jitter = jitter;
+    }
+
+    /**
+     * Returns true if the campaign is due for a poll, in which case it is not due again until an outcome is reported
+     * or the maximum interval passes without one.
+     */
+    public boolean poll(Campaign campaign) {
+        long now = System.currentTimeMillis();
+        boolean[] due = new boolean[1];
+        states.compute(campaign, (c, s) -> {
+            if (s == null) {
+                return new State(minInterval, now + jitter(minInterval, jitter));
+            }
+            if (now >= s.next) {
+                due[0] = true;
+                s.next = now + maxInterval;
+            }
+            return s;
+        });
+        return due[0];
+    }
+
+    public void changed(Campaign campaign) {
+        reschedule(campaign, true);
+    }
+
+    public void backOff(Campaign campaign) {
+        reschedule(campaign, false);
+    }
+
+    /**
+     * Records the earliest time upstream wants to be asked again, taken from the response headers.
+     */
+    public void hint(Campaign campaign, Function<String, String> headers) {
+        long delay = Math.max(parseRetryAfter(headers.apply(RETRY_AFTER)),
+                Math.min(maxInterval, parseLifetime(headers.apply(CACHE_CONTROL), headers.apply(EXPIRES))));
+        if (delay > 0) {
+            long notBefore = System.currentTimeMillis() + delay;
+            states.compute(campaign, (c, s) -> {
+                State state = s != null ? s : new State(minInterval, notBefore);
+                state.notBefore = notBefore;
+                return state;
+            });
+        }
+    }
+
+    public void remove(Campaign campaign) {
+        states.remove(campaign);
+    }
+
+    private void reschedule(Campaign campaign, boolean changed) {
+        long now = System.currentTimeMillis();
+        states.compute(campaign, (c, s) -> {
+            long interval = changed || s == null ? minInterval : Math.min(maxInterval, s.interval * 2);
+            State next = new State(interval, now + jitter(interval, jitter));
+            if (s != null && s.notBefore > next.next) {
+                next.next = s.notBefore;
+            }
+            return next;
+        });
+    }
+
+    static long jitter(long interval, double fraction) {
+        double offset = fraction <= 0 ? 0 : ThreadLocalRandom.current().nextDouble(-fraction, fraction);
+        return Math.max(0, Math.round(interval * (1 + offset)));
+    }
+
+    private static long parseRetryAfter(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            return untilDate(value);
+        }
+    }
+
+    private static long parseLifetime(String cacheControl, String expires) {
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                String d = directive.trim().toLowerCase();
+                if (d.equals("no-cache") || d.equals("no-store")) {
+                    return 0;
+                }
+                if (d.startsWith("max-age=")) {
+                    try {
+                        return Long.parseLong(d.substring("max-age=".length()).replace("\"", "")) * 1000;
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        return expires == null ? 0 : untilDate(expires);
+    }
+
+    private static long untilDate(String httpDate) {
+        try {
+            long at = ZonedDateTime.parse(httpDate.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0, at - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    private static class State {
+
+        final long interval;
+        long next, notBefore;
+
+        State(long interval, long next) {
+            this.interval = interval;
+            this.next = next;
+        }
+    }
+}
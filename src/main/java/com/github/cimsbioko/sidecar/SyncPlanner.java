@@ -0,0 +1,116 @@
+package com.github.cimsbioko.sidecar;
+
+import com.github.batkinson.jrsync.Metadata;
+import com.github.cimsbioko.sidecar.TransferJournal.Mode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import java.util.BitSet;
+
+/**
+ * Chooses between an incremental sync and a full download once metadata for new content arrives. A sync fetches each
+ * run of missing blocks with its own range request, so when most blocks have changed its round trips can cost more
+ * than streaming the whole compressed database. Link latency and bandwidth are estimated from recent upstream
+ * requests.
+ */
+@Component
+public class SyncPlanner {
+
+    private static final String INCREMENTAL_METRIC = "sync.plan.incremental";
+    private static final String FULL_METRIC = "sync.plan.full";
+    private static final String MISSING_METRIC = "gauge.sync.plan.missing";
+    private static final String LATENCY_METRIC = "gauge.upstream.latency";
+
+    private static final double WEIGHT = 0.3;
+    private static final long MIN_SAMPLE = 65536;  // smaller transfers mostly measure latency
+
+    @Autowired
+    private CounterService counters;
+
+    @Autowired
+    private GaugeService gauges;
+
+    @Value("${app.http.connections}")
+    private int connections;
+
+    @Value("${app.sync.plan}")
+    private boolean enabled;
+
+    private volatile double latency = -1, bandwidth = -1;
+
+    /**
+     * Records the time (ms) taken for an upstream request to be answered.
+     */
+    public void recordRequest(long elapsed) {
+        latency = average(latency, elapsed);
+        gauges.submit(LATENCY_METRIC, latency);
+    }
+
+    /**
+     * Records a transfer over a single upstream connection.
+     */
+    public void recordTransfer(long bytes, long elapsed) {
+        if (bytes >= MIN_SAMPLE && elapsed > 0) {
+            bandwidth = average(bandwidth, (double) bytes / elapsed);
+        }
+    }
+
+    private static double average(double current, double sample) {
+        return current < 0 ? sample : current + WEIGHT * (sample - current);
+    }
+
+    /**
+     * Estimates the time for each kind of transfer of the target, given which of its blocks are missing locally and
+     * how well the database compresses, and returns the cheaper.
+     */
+    public Plan plan(Metadata target, BitSet missing, double compression) {
+        int blocks = target.getBlockDescs().size(), missingBlocks = missing.cardinality(), runs = 0;
+        for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+            if (i == 0 || !missing.get(i - 1)) {
+                runs++;
+            }
+        }
+        gauges.submit(MISSING_METRIC, blocks > 0 ? (double) missingBlocks / blocks : 0);
+        String blockSummary = String.format("%d of %d blocks missing in %d runs", missingBlocks, blocks, runs);
+        Plan plan;
+        if (blocks > 0 && missingBlocks == blocks) {
+            plan = new Plan(Mode.FULL, blockSummary + ", nothing held locally");
+        } else if (!enabled) {
+            plan = new Plan(Mode.SYNC, blockSummary + ", transfer planning disabled");
+        } else if (latency < 0 || bandwidth <= 0) {
+            plan = new Plan(Mode.SYNC, blockSummary + ", link not yet measured");
+        } else {
+            long fileSize = target.getFileSize(), missingBytes = Math.min(fileSize, (long) missingBlocks * target.getBlockSize());
+            double rounds = Math.ceil((double) runs / Math.max(1, connections)),
+                    syncCost = rounds * latency + missingBytes / bandwidth,
+                    fullCost = latency + fileSize * compression / bandwidth;
+            plan = new Plan(syncCost <= fullCost ? Mode.SYNC : Mode.FULL,
+                    String.format("%s, estimated sync %.1fs vs full %.1fs (latency %.0fms, %.0fKB/s, compression %.2f)",
+                            blockSummary, syncCost / 1000, fullCost / 1000, latency, bandwidth * 1000 / 1024, compression));
+        }
+        counters.increment(plan.getMode() == Mode.FULL ? FULL_METRIC : INCREMENTAL_METRIC);
+        return plan;
+    }
+
+    public static class Plan {
+
+        private final Mode mode;
+        private final String reason;
+
+        Plan(Mode mode, String reason) {
+            this.mode = mode;
+            this.reason = reason;
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.cimsbioko.sidecar;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+@Controller
+public class SyncPriorityEndpoint {
+
+    private static final String PRIORITY_PATH = "/sync-priority";
+
+    @Autowired
+    private DemandTracker demand;
+
+    @Autowired
+    private CampaignService campaignService;
+
+    @GetMapping(PRIORITY_PATH)
+    public ResponseEntity<String> listPriorities() {
+        return ResponseEntity
+                .ok()
+                .contentType(MediaType.TEXT_PLAIN)
+                .body(demand.getStatus(campaignService.getCampaigns()));
+    }
+
+    /**
+     * Pins a campaign's sync priority, or unpins it when no priority is given.
+     */
+    @PostMapping(PRIORITY_PATH)
+    public ResponseEntity<String> pinPriority(@RequestParam String campaign, @RequestParam(required = false) Double priority) {
+        if (!campaignService.getCampaign(campaign).isPresent()) {
+            return ResponseEntity.notFound().build();
+        }
+        demand.pin(campaign, priority);
+        return listPriorities();
+    }
+}
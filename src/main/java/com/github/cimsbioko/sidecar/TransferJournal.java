@@ -0,0 +1,64 @@
+package com.github.cimsbioko.sidecar;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * Identifies the upstream content a partial transfer was for, so a later attempt only continues from it while the
+ * target is unchanged. Full downloads are identified by the response entity tag, incremental syncs by the target
+ * file hash from the metadata.
+ */
+public class TransferJournal {
+
+    public enum Mode {
+        FULL, SYNC
+    }
+
+    private static final String MODE = "mode", TARGET = "target";
+
+    private final Mode mode;
+    private final String target;
+
+    public TransferJournal(Mode mode, String target) {
+        this.mode = mode;
+        this.target = target;
+    }
+
+    public static TransferJournal read(File journalFile) {
+        if (!journalFile.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(journalFile)) {
+            props.load(in);
+            return new TransferJournal(Mode.valueOf(props.getProperty(MODE)), props.getProperty(TARGET));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public void write(File journalFile) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(MODE, mode.name());
+        props.setProperty(TARGET, target);
+        File temp = new File(journalFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            props.store(out, null);
+        }
+        if (!temp.renameTo(journalFile)) {
+            throw new IOException("failed to write transfer journal " + journalFile);
+        }
+    }
+
+    public boolean isFor(Mode mode, String target) {
+        return this.mode == mode && this.target != null && this.target.equals(target);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+}
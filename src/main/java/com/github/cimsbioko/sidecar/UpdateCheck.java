@@ -0,0 +1,53 @@
+package com.github.cimsbioko.sidecar;
+
+/**
+ * The outcome of checking a campaign for new content, as reported to callers of the update trigger.
+ */
+public class UpdateCheck {
+
+    public enum Status {
+        UPDATED, UNCHANGED, FAILED, IN_PROGRESS
+    }
+
+    private final String campaign, name, hash;
+    private final Status status;
+    private final long checked;
+
+    UpdateCheck(Campaign campaign, Status status, String hash, long checked) {
+        this.campaign = campaign.getUuid();
+        this.name = campaign.getName();
+        this.status = status;
+        this.hash = hash;
+        this.checked = checked;
+    }
+
+    static UpdateCheck inProgress(Campaign campaign, Content current) {
+        return new UpdateCheck(campaign, Status.IN_PROGRESS, current == null ? null : current.getContentHash(), 0);
+    }
+
+    public String getCampaign() {
+        return campaign;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * The hash of the campaign's content after the check, or null if it has none.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * When the check finished, in milliseconds since the epoch, or 0 if it has not.
+     */
+    public long getChecked() {
+        return checked;
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.cimsbioko.sidecar;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * What was known about an installed file when it was last verified. If the file's size, modification time and file
+ * key are unchanged, its hash can be trusted without reading it again.
+ */
+public class VerificationRecord {
+
+    private static final String HASH = "hash", SIZE = "size", MODIFIED = "modified", FILE_KEY = "fileKey";
+
+    private final String hash, fileKey;
+    private final long size, modified;
+
+    private VerificationRecord(String hash, long size, long modified, String fileKey) {
+        this.hash = hash;
+        this.size = size;
+        this.modified = modified;
+        this.fileKey = fileKey;
+    }
+
+    public static VerificationRecord of(String hash, File file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return new VerificationRecord(hash, attrs.size(), attrs.lastModifiedTime().toMillis(), String.valueOf(attrs.fileKey()));
+    }
+
+    public static VerificationRecord read(File recordFile) {
+        if (!recordFile.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(recordFile)) {
+            props.load(in);
+            return new VerificationRecord(props.getProperty(HASH), Long.parseLong(props.getProperty(SIZE)),
+                    Long.parseLong(props.getProperty(MODIFIED)), props.getProperty(FILE_KEY));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public void write(File recordFile) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(HASH, hash);
+        props.setProperty(SIZE, String.valueOf(size));
+        props.setProperty(MODIFIED, String.valueOf(modified));
+        props.setProperty(FILE_KEY, fileKey);
+        File temp = new File(recordFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            props.store(out, null);
+        }
+        if (!temp.renameTo(recordFile)) {
+            throw new IOException("failed to write verification record " + recordFile);
+        }
+    }
+
+    public boolean matches(File file) {
+        try {
+            return equals(of(hash, file));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        VerificationRecord that = (VerificationRecord) o;
+        return size == that.size &&
+                modified == that.modified &&
+                Objects.equals(hash, that.hash) &&
+                Objects.equals(fileKey, that.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(hash, size, modified, fileKey);
+    }
+}
@@ -0,0 +1,239 @@
+package com.github.cimsbioko.sidecar;
+
+import com.github.cimsbioko.sidecar.events.CampaignRemoved;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static java.nio.file.Files.deleteIfExists;
+
+/**
+ * Keeps the most recent verified versions of each campaign's content under their hash, linked rather than copied
+ * from the installed files. Versions are never modified once retained, so they can be served under hash-addressed URLs
+ * and installing new content never changes a file a tablet is still downloading.
+ * <p>
+ * Versions being served are leased, and an expired version is only removed once its last lease is closed. A lease only
+ * guards a transfer that holds it to the end, so versions other than the current one are not sent with sendfile, which
+ * opens the file after the request handler has returned. The order versions were retained in is kept in an index,
+ * since linked files carry the installed file's timestamps rather than when they were retained.
+ */
+@Component
+public class VersionStore {
+
+    private static final Logger log = LoggerFactory.getLogger(VersionStore.class);
+
+    @Autowired
+    private FileSystem fs;
+
+    @Value("${app.delta.versions}")
+    private int retainedVersions;
+
+    private final Map<File, Integer> leases = new HashMap<>();
+
+    private final Set<File> expired = new HashSet<>();
+
+    /**
+     * Retains the installed content as a version and expires older versions beyond the configured number. Returns
+     * the content as served from its version.
+     */
+    public synchronized Content retain(Campaign campaign, Content installed) throws IOException {
+        String hash = installed.getContentHash();
+        Files.createDirectories(fs.getVersionDir(campaign));
+        link(installed.getContentFile(), fs.getVersion(campaign, hash));
+        link(installed.getMetadataFile(), fs.getVersionMetadata(campaign, hash));
+        link(installed.getCompressedContentFile(), fs.getCompressedVersion(campaign, hash));
+        link(installed.getCompressedMetadataFile(), fs.getCompressedVersionMetadata(campaign, hash));
+        List<String> order = readIndex(campaign);
+        order.remove(hash);
+        order.add(0, hash);
+        expired.remove(fs.getVersion(campaign, hash));
+        expire(campaign, order);
+        return getVersion(campaign, hash);
+    }
+
+    /**
+     * Returns the retained version of the campaign's content with the given hash, or null if there is none.
+     */
+    public Content getVersion(Campaign campaign, String hash) {
+        File content = fs.getVersion(campaign, hash), metadata = fs.getVersionMetadata(campaign, hash),
+                compressedContent = fs.getCompressedVersion(campaign, hash),
+                compressedMetadata = fs.getCompressedVersionMetadata(campaign, hash);
+        if (!content.exists() || !metadata.exists()) {
+            return null;
+        }
+        return new Content(hash, content, metadata,
+                compressedContent.exists() ? compressedContent : null, compressedMetadata.exists() ? compressedMetadata : null);
+    }
+
+    /**
+     * Returns the retained versions' database files, most recently retained first.
+     */
+    public synchronized List<File> getVersions(Campaign campaign) throws IOException {
+        List<File> versions = new ArrayList<>();
+        for (String hash : readIndex(campaign)) {
+            File version = fs.getVersion(campaign, hash);
+            if (version.exists() && !expired.contains(version)) {
+                versions.add(version);
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Leases the content for serving, so it can not be removed until the lease is closed. Returns null if the content
+     * is a version that has already expired. Content not served from a version gets a lease that guards nothing.
+     */
+    public synchronized Lease acquire(Content content) {
+        File file = content.getContentFile();
+        if (!file.toPath().startsWith(fs.getVersionsDir())) {
+            return new Lease(null);
+        }
+        if (expired.contains(file) || !file.exists()) {
+            return null;
+        }
+        leases.merge(file, 1, Integer::sum);
+        return new Lease(file);
+    }
+
+    private synchronized void release(File file) {
+        if (leases.computeIfPresent(file, (f, count) -> count > 1 ? count - 1 : null) == null && expired.remove(file)) {
+            Campaign owner = new Campaign();
+            owner.setUuid(file.getParentFile().getName());
+            try {
+                delete(owner, file.getName().replaceFirst("\\.db$", ""));
+            } catch (IOException e) {
+                log.warn("failed to remove expired version " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Keeps the newest versions in the given order, most recent first, and removes the rest once they are no longer
+     * leased.
+     */
+    private void expire(Campaign campaign, List<String> order) throws IOException {
+        int kept = Math.min(order.size(), retainedVersions + 1);
+        for (String hash : order.subList(kept, order.size())) {
+            File version = fs.getVersion(campaign, hash);
+            if (leases.containsKey(version)) {
+                log.info("expiring version {} once no longer served", version);
+                expired.add(version);
+            } else {
+                delete(campaign, hash);
+            }
+        }
+        writeIndex(campaign, order.subList(0, kept));
+    }
+
+    private void delete(Campaign campaign, String hash) throws IOException {
+        log.info("expiring version {}", fs.getVersion(campaign, hash));
+        deleteIfExists(fs.getVersion(campaign, hash).toPath());
+        deleteIfExists(fs.getVersionMetadata(campaign, hash).toPath());
+        deleteIfExists(fs.getCompressedVersion(campaign, hash).toPath());
+        deleteIfExists(fs.getCompressedVersionMetadata(campaign, hash).toPath());
+    }
+
+    /**
+     * Returns the hashes of the campaign's versions, most recently retained first. Versions missing from the index,
+     * such as those retained before it existed or expired while leased before a restart, follow oldest last.
+     */
+    private List<String> readIndex(Campaign campaign) throws IOException {
+        List<String> order = new ArrayList<>();
+        File index = fs.getVersionIndex(campaign);
+        if (index.exists()) {
+            for (String line : Files.readAllLines(index.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    order.add(line.trim());
+                }
+            }
+        }
+        Path dir = fs.getVersionDir(campaign);
+        if (Files.isDirectory(dir)) {
+            List<File> unindexed = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*.db")) {
+                entries.forEach(p -> unindexed.add(p.toFile()));
+            }
+            unindexed.sort(Comparator.comparingLong(File::lastModified).reversed());
+            for (File version : unindexed) {
+                String hash = version.getName().replaceFirst("\\.db$", "");
+                if (!order.contains(hash)) {
+                    order.add(hash);
+                }
+            }
+        }
+        return order;
+    }
+
+    private void writeIndex(Campaign campaign, List<String> order) throws IOException {
+        Path index = fs.getVersionIndex(campaign).toPath(), temp = index.resolveSibling(index.getFileName() + ".tmp");
+        Files.write(temp, order, StandardCharsets.UTF_8);
+        Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @EventListener
+    public void onCampaignRemoved(CampaignRemoved event) throws IOException {
+        Path dir = fs.getVersionDir(event.getCampaign());
+        synchronized (this) {
+            expired.removeIf(f -> f.toPath().startsWith(dir));
+        }
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> entries = Files.walk(dir)) {
+                for (Path p : (Iterable<Path>) entries.sorted(Comparator.reverseOrder())::iterator) {
+                    deleteIfExists(p);
+                }
+            }
+        }
+    }
+
+    private static void link(File source, File version) throws IOException {
+        if (source == null || version.exists()) {
+            return;
+        }
+        try {
+            Files.createLink(version.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source.toPath(), version.toPath());
+        }
+    }
+
+    /**
+     * Keeps a version from being removed while it is served. A transfer that outlives its request handler shares the
+     * lease, and the version is released once every holder has closed it.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final File file;
+        private int holds = 1;
+
+        private Lease(File file) {
+            this.file = file;
+        }
+
+        public synchronized Lease share() {
+            if (holds > 0) {
+                holds++;
+            }
+            return this;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (holds > 0 && --holds == 0 && file != null) {
+                release(file);
+            }
+        }
+    }
+}
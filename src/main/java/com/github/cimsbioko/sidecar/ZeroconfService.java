@@ -1,6 +1,8 @@
 package com.github.cimsbioko.sidecar;
 
+import com.github.cimsbioko.sidecar.events.CampaignRemoved;
 import com.github.cimsbioko.sidecar.events.ContentReady;
+import com.github.cimsbioko.sidecar.events.ZeroconfPeersChanged;
 import com.github.cimsbioko.sidecar.events.ZeroconfPrimaryChanged;
 import com.github.cimsbioko.sidecar.events.ZeroconfServicesChanged;
 import org.slf4j.Logger;
@@ -20,6 +22,11 @@ import javax.jmdns.ServiceEvent;
 import javax.jmdns.ServiceInfo;
 import javax.jmdns.ServiceListener;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static javax.jmdns.ServiceInfo.create;
 
@@ -30,6 +37,7 @@ public class ZeroconfService implements ServiceListener {
     private static final Logger log = LoggerFactory.getLogger(ZeroconfService.class);
 
     private static final String SERVICE_TYPE = "_cimssc._tcp.local.";
+    private static final String PATH_PROPERTY = "path";
 
     private int port;
 
@@ -39,9 +47,14 @@ public class ZeroconfService implements ServiceListener {
 
     private ApplicationEventPublisher eventPublisher;
 
+    private final Map<String, String> advertised = new LinkedHashMap<>();
+
     @Value("${app.download.path}")
     private String downloadPath;
 
+    @Value("${app.zeroconf.max-advertised}")
+    private int maxAdvertised;
+
     @Autowired
     public ZeroconfService(ApplicationEventPublisher eventPublisher) {
         this.eventPublisher = eventPublisher;
@@ -53,24 +66,65 @@ public class ZeroconfService implements ServiceListener {
     }
 
     @EventListener
-    public void onApplicationStart(ApplicationReadyEvent event) throws IOException {
+    public synchronized void onApplicationStart(ApplicationReadyEvent event) throws IOException {
         log.info("starting zeroconf");
         registry = JmDNS.create();
         registry.addServiceListener(SERVICE_TYPE, this);
+        if (!advertised.isEmpty()) {
+            advertise();  // content became ready before zeroconf started
+        }
     }
 
     @EventListener
-    public void onContentReady(ContentReady event) throws IOException {
+    public synchronized void onContentReady(ContentReady event) throws IOException {
+        String uuid = event.getCampaign().getUuid();
+        advertised.remove(uuid);  // re-inserted, so the most recently changed campaigns come last
+        advertised.put(uuid, event.getContent().getContentHash());
+        if (registry != null) {
+            advertise();
+        }
+    }
+
+    private void advertise() throws IOException {
         if (serviceInfo == null) {
             log.info("registering zeroconf service");
-            serviceInfo = create(SERVICE_TYPE, "sidecar", port, "path=" + downloadPath);
+            serviceInfo = create(SERVICE_TYPE, "sidecar", port, 0, 0, getProperties());
             registry.registerService(serviceInfo);
+        } else {
+            serviceInfo.setText(getProperties());
+        }
+    }
+
+    @EventListener
+    public synchronized void onCampaignRemoved(CampaignRemoved event) {
+        if (advertised.remove(event.getCampaign().getUuid()) != null && serviceInfo != null) {
+            serviceInfo.setText(getProperties());
+        }
+    }
+
+    /**
+     * Advertises the download path along with the verified content hash held for each campaign, keyed by uuid, so
+     * peers can fetch new content from any sidecar that already has it. Each entry takes about 70 bytes of a TXT
+     * record that should stay within a single packet, so only the most recently changed campaigns are advertised;
+     * peers fetch the rest from the primary or upstream as usual.
+     */
+    private Map<String, String> getProperties() {
+        Map<String, String> props = new HashMap<>();
+        int skip = advertised.size() - Math.max(0, maxAdvertised);
+        for (Map.Entry<String, String> entry : advertised.entrySet()) {
+            if (skip-- <= 0) {
+                props.put(entry.getKey(), entry.getValue());
+            }
         }
+        props.put(PATH_PROPERTY, downloadPath);
+        return props;
     }
 
     @EventListener
     public ZeroconfPrimaryChanged updatePrimary(ZeroconfServicesChanged event) {
-        ServiceInfo computed = findPrimaryService();
+        ServiceInfo[] services = registry.list(SERVICE_TYPE);
+        ServiceInfo computed = findPrimaryService(services);
+        eventPublisher.publishEvent(new ZeroconfPeersChanged(serviceInfo == computed ? null : computed, findPeers(services)));
         if (computed != primaryServiceInfo) {
             primaryServiceInfo = computed;
             return new ZeroconfPrimaryChanged(serviceInfo == primaryServiceInfo, primaryServiceInfo);
@@ -78,9 +132,19 @@ public class ZeroconfService implements ServiceListener {
         return null;
     }
 
-    private ServiceInfo findPrimaryService() {
+    private List<ServiceInfo> findPeers(ServiceInfo[] services) {
+        List<ServiceInfo> peers = new ArrayList<>();
+        for (ServiceInfo service : services) {
+            if (serviceInfo == null || !serviceInfo.getQualifiedName().equals(service.getQualifiedName())) {
+                peers.add(service);
+            }
+        }
+        return peers;
+    }
+
+    private ServiceInfo findPrimaryService(ServiceInfo[] services) {
         ServiceInfo primary = serviceInfo;
-        for (ServiceInfo service : registry.list(SERVICE_TYPE)) {
+        for (ServiceInfo service : services) {
             log.debug("considering: {}", service);
             if (primary == null || primary.getName().compareTo(service.getName()) > 0) {
                 log.debug("new best: {}", service);
@@ -0,0 +1,24 @@
+package com.github.cimsbioko.sidecar.events;
+
+import com.github.cimsbioko.sidecar.Campaign;
+import com.github.cimsbioko.sidecar.Content;
+
+public class AuditRequested implements CampaignEvent {
+
+    private final Campaign campaign;
+    private final Content content;
+
+    public AuditRequested(Campaign campaign, Content content) {
+        this.campaign = campaign;
+        this.content = content;
+    }
+
+    @Override
+    public Campaign getCampaign() {
+        return campaign;
+    }
+
+    public Content getContent() {
+        return content;
+    }
+}
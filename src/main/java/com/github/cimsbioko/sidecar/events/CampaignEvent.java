@@ -0,0 +1,7 @@
+package com.github.cimsbioko.sidecar.events;
+
+import com.github.cimsbioko.sidecar.Campaign;
+
+public interface CampaignEvent {
+    Campaign getCampaign();
+}
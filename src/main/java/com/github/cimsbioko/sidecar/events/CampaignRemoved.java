@@ -0,0 +1,17 @@
+package com.github.cimsbioko.sidecar.events;
+
+import com.github.cimsbioko.sidecar.Campaign;
+
+public class CampaignRemoved implements CampaignEvent {
+
+    private final Campaign campaign;
+
+    public CampaignRemoved(Campaign campaign) {
+        this.campaign = campaign;
+    }
+
+    @Override
+    public Campaign getCampaign() {
+        return campaign;
+    }
+}
@@ -4,17 +4,25 @@ import com.github.cimsbioko.sidecar.Campaign;
 
 import java.io.File;
 
-public class ContentAvailable {
+public class ContentAvailable implements CampaignEvent {
 
     private final Campaign campaign;
-    private final File content, metadata;
+    private final File content, metadata, compressedContent;
+    private final byte[] contentHash;
 
     public ContentAvailable(Campaign campaign, File content, File metadata) {
+        this(campaign, content, metadata, null, null);
+    }
+
+    public ContentAvailable(Campaign campaign, File content, File metadata, byte[] contentHash, File compressedContent) {
         this.campaign = campaign;
         this.content = content;
         this.metadata = metadata;
+        this.contentHash = contentHash;
+        this.compressedContent = compressedContent;
     }
 
+    @Override
     public Campaign getCampaign() {
         return campaign;
     }
@@ -27,4 +35,12 @@ public class ContentAvailable {
         return metadata;
     }
 
+    public byte[] getContentHash() {
+        return contentHash;
+    }
+
+    public File getCompressedContent() {
+        return compressedContent;
+    }
+
 }
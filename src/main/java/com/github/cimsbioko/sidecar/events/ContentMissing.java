@@ -2,7 +2,7 @@ package com.github.cimsbioko.sidecar.events;
 
 import com.github.cimsbioko.sidecar.Campaign;
 
-public class ContentMissing {
+public class ContentMissing implements CampaignEvent {
 
     private final Campaign campaign;
 
@@ -10,6 +10,7 @@ public class ContentMissing {
         this.campaign = campaign;
     }
 
+    @Override
     public Campaign getCampaign() {
         return campaign;
     }
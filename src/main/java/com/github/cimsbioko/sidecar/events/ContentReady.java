@@ -3,7 +3,7 @@ package com.github.cimsbioko.sidecar.events;
 import com.github.cimsbioko.sidecar.Campaign;
 import com.github.cimsbioko.sidecar.Content;
 
-public class ContentReady {
+public class ContentReady implements CampaignEvent {
 
     private final Campaign campaign;
     private final Content content;
@@ -13,6 +13,7 @@ public class ContentReady {
         this.content = content;
     }
 
+    @Override
     public Campaign getCampaign() {
         return campaign;
     }
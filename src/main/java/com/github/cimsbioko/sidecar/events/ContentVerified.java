@@ -3,7 +3,7 @@ package com.github.cimsbioko.sidecar.events;
 import com.github.cimsbioko.sidecar.Campaign;
 import com.github.cimsbioko.sidecar.Content;
 
-public class ContentVerified {
+public class ContentVerified implements CampaignEvent {
 
     private final Content content;
     private final Campaign campaign;
@@ -13,6 +13,7 @@ public class ContentVerified {
         this.content = content;
     }
 
+    @Override
     public Campaign getCampaign() {
         return campaign;
     }
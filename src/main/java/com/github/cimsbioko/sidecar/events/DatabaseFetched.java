@@ -8,11 +8,13 @@ public class DatabaseFetched implements FetchEvent {
 
     private Campaign campaign;
     private final File database, metadata;
+    private final byte[] databaseHash;
 
-    public DatabaseFetched(Campaign campaign, File metadata, File database) {
+    public DatabaseFetched(Campaign campaign, File metadata, File database, byte[] databaseHash) {
         this.campaign = campaign;
         this.metadata = metadata;
         this.database = database;
+        this.databaseHash = databaseHash;
     }
 
     @Override
@@ -27,4 +29,8 @@ public class DatabaseFetched implements FetchEvent {
     public File getDatabase() {
         return database;
     }
+
+    public byte[] getDatabaseHash() {
+        return databaseHash;
+    }
 }
@@ -1,7 +1,4 @@
 package com.github.cimsbioko.sidecar.events;
 
-import com.github.cimsbioko.sidecar.Campaign;
-
-public interface FetchEvent {
-    Campaign getCampaign();
+public interface FetchEvent extends CampaignEvent {
 }
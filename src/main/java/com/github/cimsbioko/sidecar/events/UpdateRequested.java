@@ -3,7 +3,7 @@ package com.github.cimsbioko.sidecar.events;
 import com.github.cimsbioko.sidecar.Campaign;
 import com.github.cimsbioko.sidecar.Content;
 
-public class UpdateRequested {
+public class UpdateRequested implements CampaignEvent {
 
     private final Campaign campaign;
     private final Content existing;
@@ -13,6 +13,7 @@ public class UpdateRequested {
         this.existing = existing;
     }
 
+    @Override
     public Campaign getCampaign() {
         return campaign;
     }
@@ -0,0 +1,29 @@
+package com.github.cimsbioko.sidecar.events;
+
+import javax.jmdns.ServiceInfo;
+import java.util.List;
+
+public class ZeroconfPeersChanged {
+
+    private final ServiceInfo primaryServiceInfo;
+    private final List<ServiceInfo> peers;
+
+    public ZeroconfPeersChanged(ServiceInfo primaryServiceInfo, List<ServiceInfo> peers) {
+        this.primaryServiceInfo = primaryServiceInfo;
+        this.peers = peers;
+    }
+
+    /**
+     * The primary sidecar, or null when this sidecar is the primary.
+     */
+    public ServiceInfo getPrimaryServiceInfo() {
+        return primaryServiceInfo;
+    }
+
+    /**
+     * The other sidecars on the network, including the primary.
+     */
+    public List<ServiceInfo> getPeers() {
+        return peers;
+    }
+}
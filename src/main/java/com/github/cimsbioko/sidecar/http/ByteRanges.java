@@ -0,0 +1,159 @@
+package com.github.cimsbioko.sidecar.http;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+
+/**
+ * Helpers for reading and writing multipart/byteranges bodies.
+ */
+class ByteRanges {
+
+    static final String MULTIPART_BYTERANGES = "multipart/byteranges";
+
+    private static final String BYTES_UNIT = "bytes=";
+    private static final String CRLF = "\r\n";
+
+    static List<String> spans(String rangeHeader) {
+        if (rangeHeader == null || !rangeHeader.startsWith(BYTES_UNIT)) {
+            return emptyList();
+        }
+        List<String> spans = new ArrayList<>();
+        for (String span : rangeHeader.substring(BYTES_UNIT.length()).split(",")) {
+            if (!span.trim().isEmpty()) {
+                spans.add(span.trim());
+            }
+        }
+        return spans;
+    }
+
+    static String boundary(String contentType) throws IOException {
+        for (String param : contentType.split(";")) {
+            String p = param.trim();
+            if (p.startsWith("boundary=")) {
+                return p.substring("boundary=".length()).replace("\"", "");
+            }
+        }
+        throw new IOException("no boundary in " + contentType);
+    }
+
+    static long length(String contentRange) throws IOException {
+        try {
+            String range = contentRange.trim().split("[ /]")[1];
+            int dash = range.indexOf('-');
+            return Long.parseLong(range.substring(dash + 1)) - Long.parseLong(range.substring(0, dash)) + 1;
+        } catch (RuntimeException e) {
+            throw new IOException("bad content range: " + contentRange, e);
+        }
+    }
+
+    /**
+     * Re-frames the parts of a multipart/byteranges body under a new boundary as they are read, leaving out the
+     * closing delimiter so more parts can follow.
+     */
+    static InputStream reframe(InputStream in, String inBoundary, String outBoundary) {
+        String delimiter = "--" + inBoundary;
+        return new InputStream() {
+
+            private byte[] header = new byte[0];
+            private int headerPos;
+            private long remaining;
+            private boolean started, done;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buf, int off, int len) throws IOException {
+                while (true) {
+                    if (headerPos < header.length) {
+                        int n = Math.min(len, header.length - headerPos);
+                        System.arraycopy(header, headerPos, buf, off, n);
+                        headerPos += n;
+                        return n;
+                    } else if (remaining > 0) {
+                        int n = in.read(buf, off, (int) Math.min(len, remaining));
+                        if (n < 0) {
+                            throw new EOFException("range truncated");
+                        }
+                        remaining -= n;
+                        return n;
+                    } else if (done || !nextPart()) {
+                        return -1;
+                    }
+                }
+            }
+
+            private boolean nextPart() throws IOException {
+                // the preamble is skipped, but between parts anything other than a delimiter means the framing is lost
+                String line;
+                do {
+                    line = readLine(in).trim();
+                } while (line.isEmpty() || !started && !isDelimiter(line));
+                if (!isDelimiter(line)) {
+                    throw new IOException("expected " + delimiter + " but got " + line);
+                }
+                started = true;
+                if (line.equals(delimiter + "--")) {
+                    done = true;
+                    return false;
+                }
+                String type = null, range = null;
+                while (!(line = readLine(in)).isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        String name = line.substring(0, colon).trim(), value = line.substring(colon + 1).trim();
+                        if ("Content-Type".equalsIgnoreCase(name)) {
+                            type = value;
+                        } else if ("Content-Range".equalsIgnoreCase(name)) {
+                            range = value;
+                        }
+                    }
+                }
+                if (range == null) {
+                    throw new IOException("part without content range");
+                }
+                header = partHeader(outBoundary, type, range);
+                headerPos = 0;
+                remaining = length(range);
+                return true;
+            }
+
+            private boolean isDelimiter(String line) {
+                return line.equals(delimiter) || line.equals(delimiter + "--");
+            }
+        };
+    }
+
+    static byte[] partHeader(String boundary, String type, String contentRange) {
+        StringBuilder header = new StringBuilder(CRLF).append("--").append(boundary).append(CRLF);
+        if (type != null) {
+            header.append("Content-Type: ").append(type).append(CRLF);
+        }
+        header.append("Content-Range: ").append(contentRange).append(CRLF).append(CRLF);
+        return header.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static byte[] terminator(String boundary) {
+        return (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("multipart body truncated");
+            }
+            line.write(b);
+        }
+        String result = new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+        return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.cimsbioko.sidecar.http;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Bounds the number of upstream connections used for parallel range fetches. The sockets themselves are reused by
+ * the JDK's HTTP keep-alive cache, which {@link com.github.cimsbioko.sidecar.Application} sizes to match at startup.
+ */
+@Component
+public class ConnectionPool {
+
+    private final int size;
+    private final Path spoolDir;
+    private final ExecutorService executor;
+
+    public ConnectionPool(@Value("${app.http.connections}") int size, @Value("${app.data.dir}") Path spoolDir) {
+        this.size = Math.max(1, size);
+        this.spoolDir = spoolDir;
+        this.executor = Executors.newFixedThreadPool(this.size, r -> {
+            Thread t = new Thread(r, "range-fetch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    Path getSpoolDir() {
+        return spoolDir;
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,296 @@
+package com.github.cimsbioko.sidecar.http;
+
+import com.github.batkinson.jrsync.zsync.RangeRequest;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+import static com.github.cimsbioko.sidecar.http.ByteRanges.MULTIPART_BYTERANGES;
+
+/**
+ * A range request that splits a multi-span Range header across the connection pool, fetching groups of spans
+ * concurrently and presenting them to the caller as a single multipart/byteranges response. Each part keeps its
+ * Content-Range, so blocks still land at the right offsets. Servers that do not honor ranges get a plain request.
+ */
+class ParallelRangeRequest implements RangeRequest {
+
+    private static final String RANGE = "Range";
+    private static final String CONTENT_RANGE = "Content-Range";
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String IDENTITY = "identity";
+    private static final int SC_PARTIAL_CONTENT = 206;
+
+    private final RequestFactory factory;
+    private final ConnectionPool pool;
+    private final LongConsumer received;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private RangeRequest response;
+    private InputStream body;
+
+    ParallelRangeRequest(RequestFactory factory, ConnectionPool pool, LongConsumer received) {
+        this.factory = factory;
+        this.pool = pool;
+        this.received = received;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        return resolve().getResponseCode();
+    }
+
+    @Override
+    public String getContentType() {
+        return resolveUnchecked().getContentType();
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return resolveUnchecked().getHeader(name);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (response != null) {
+            throw new IllegalStateException("request already sent");
+        }
+        headers.put(name, value);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        body = new CountingInputStream(resolve().getInputStream(), received);
+        return body;
+    }
+
+    @Override
+    public void close() {
+        if (body != null) {
+            try {
+                body.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (response != null) {
+            response.close();
+        }
+    }
+
+    private RangeRequest resolveUnchecked() {
+        try {
+            return resolve();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private RangeRequest resolve() throws IOException {
+        if (response == null) {
+            List<String> spans = ByteRanges.spans(headers.get(RANGE));
+            if (spans.size() > 1 && pool.getSize() > 1) {
+                response = fetchParallel(spans);
+            }
+            if (response == null) {
+                response = open(headers.get(RANGE));
+            }
+        }
+        return response;
+    }
+
+    private Request open(String range) throws IOException {
+        Request request = factory.create();
+        headers.forEach(request::setHeader);
+        if (range != null) {
+            request.setHeader(RANGE, range);
+            request.setHeader(ACCEPT_ENCODING, IDENTITY);  // ranges must address the stored bytes
+        }
+        return request;
+    }
+
+    /**
+     * Fetches the first group of spans on this thread and the rest on the pool. The first group is streamed straight
+     * from its connection as the caller reads it; only the others, which arrive while it is being consumed, are
+     * spooled to disk.
+     */
+    private RangeRequest fetchParallel(List<String> spans) throws IOException {
+        int groups = Math.min(pool.getSize(), spans.size());
+        String boundary = "sidecar-" + UUID.randomUUID();
+        List<Future<Path>> fetches = new ArrayList<>(groups - 1);
+        for (int g = 1; g < groups; g++) {
+            List<String> group = spans.subList(g * spans.size() / groups, (g + 1) * spans.size() / groups);
+            fetches.add(pool.getExecutor().submit(() -> fetchGroup(group, boundary)));
+        }
+        Request first = open("bytes=" + String.join(",", spans.subList(0, spans.size() / groups)));
+        try {
+            if (first.getResponseCode() != SC_PARTIAL_CONTENT) {
+                first.close();
+                discard(fetches);
+                return null;
+            }
+            return new MergedResponse(boundary, first, parts(first, boundary), fetches);
+        } catch (IOException | RuntimeException e) {
+            first.close();
+            discard(fetches);
+            throw e;
+        }
+    }
+
+    private Path fetchGroup(List<String> group, String boundary) throws IOException {
+        Path spool = Files.createTempFile(pool.getSpoolDir(), "range-", ".tmp");
+        boolean fetched = false;
+        Request request = open("bytes=" + String.join(",", group));
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(spool))) {
+            if (request.getResponseCode() != SC_PARTIAL_CONTENT) {
+                return null;
+            }
+            copy(parts(request, boundary), out);
+            fetched = true;
+            return spool;
+        } finally {
+            request.close();
+            if (!fetched) {
+                Files.deleteIfExists(spool);
+            }
+        }
+    }
+
+    /**
+     * Returns the parts of a range response framed under the given boundary, without the closing delimiter.
+     */
+    private static InputStream parts(Request request, String boundary) throws IOException {
+        String type = request.getContentType();
+        if (type != null && type.startsWith(MULTIPART_BYTERANGES)) {
+            return ByteRanges.reframe(request.getInputStream(), ByteRanges.boundary(type), boundary);
+        }
+        return new SequenceInputStream(
+                new ByteArrayInputStream(ByteRanges.partHeader(boundary, type, request.getHeader(CONTENT_RANGE))),
+                request.getInputStream());
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[65536];
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            out.write(buf, 0, read);
+        }
+    }
+
+    private static void discard(List<Future<Path>> fetches) {
+        for (Future<Path> fetch : fetches) {
+            if (!fetch.cancel(true)) {
+                try {
+                    Path spool = fetch.get();
+                    if (spool != null) {
+                        Files.deleteIfExists(spool);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException | IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * A multipart/byteranges response made of the first group's live parts followed by the spooled parts of the
+     * others, each waited for only when reached.
+     */
+    private static class MergedResponse implements RangeRequest {
+
+        private final String boundary, contentType;
+        private final Request first;
+        private final InputStream live;
+        private final List<Future<Path>> fetches;
+        private final List<InputStream> opened = new ArrayList<>();
+
+        MergedResponse(String boundary, Request first, InputStream live, List<Future<Path>> fetches) {
+            this.boundary = boundary;
+            this.contentType = MULTIPART_BYTERANGES + "; boundary=" + boundary;
+            this.first = first;
+            this.live = live;
+            this.fetches = fetches;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return SC_PARTIAL_CONTENT;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return CONTENT_TYPE.equalsIgnoreCase(name) ? contentType : null;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            throw new IllegalStateException("request already sent");
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            Iterator<Future<Path>> pending = fetches.iterator();
+            return new SequenceInputStream(new Enumeration<InputStream>() {
+
+                private boolean started, finished;
+
+                @Override
+                public boolean hasMoreElements() {
+                    return !finished;
+                }
+
+                @Override
+                public InputStream nextElement() {
+                    if (!started) {
+                        started = true;
+                        return live;
+                    } else if (pending.hasNext()) {
+                        InputStream spooled = open(pending.next());
+                        opened.add(spooled);
+                        return spooled;
+                    }
+                    finished = true;
+                    return new ByteArrayInputStream(ByteRanges.terminator(boundary));
+                }
+            });
+        }
+
+        private static InputStream open(Future<Path> fetch) {
+            try {
+                Path spool = fetch.get();
+                if (spool == null) {
+                    throw new IOException("range request not honored");
+                }
+                return new BufferedInputStream(Files.newInputStream(spool));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("range fetch interrupted"));
+            } catch (ExecutionException e) {
+                throw new UncheckedIOException(new IOException("range fetch failed", e.getCause()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            for (InputStream stream : opened) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+            first.close();
+            discard(fetches);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.cimsbioko.sidecar.http;
+
+import com.github.batkinson.jrsync.zsync.RangeRequest;
+import com.github.batkinson.jrsync.zsync.RangeRequestFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.function.LongConsumer;
+
+public class PooledRequestFactory implements RangeRequestFactory {
+
+    private final RequestFactory factory;
+    private final ConnectionPool pool;
+    private final LongConsumer received;
+
+    public PooledRequestFactory(URI endpoint, String mimeType, String auth, ConnectionPool pool, LongConsumer received) {
+        this.factory = new RequestFactory(endpoint, mimeType, auth);
+        this.pool = pool;
+        this.received = received;
+    }
+
+    @Override
+    public RangeRequest create() throws IOException {
+        return new ParallelRangeRequest(factory, pool, received);
+    }
+}
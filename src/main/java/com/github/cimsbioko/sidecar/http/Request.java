@@ -10,6 +10,7 @@ import static com.github.cimsbioko.sidecar.http.RequestFactory.GZIP;
 public class Request implements com.github.batkinson.jrsync.zsync.RangeRequest {
 
     private final HttpURLConnection c;
+    private boolean requested;
 
     Request(HttpURLConnection c) {
         this.c = c;
@@ -17,16 +18,19 @@ public class Request implements com.github.batkinson.jrsync.zsync.RangeRequest {
 
     @Override
     public int getResponseCode() throws IOException {
+        requested = true;
         return c.getResponseCode();
     }
 
     @Override
     public String getContentType() {
+        requested = true;
         return c.getContentType();
     }
 
     @Override
     public String getHeader(String name) {
+        requested = true;
         return c.getHeaderField(name);
     }
 
@@ -37,6 +41,7 @@ public class Request implements com.github.batkinson.jrsync.zsync.RangeRequest {
 
     @Override
     public InputStream getInputStream() throws IOException {
+        requested = true;
         if (GZIP.equals(c.getContentEncoding())) {
             return new GZIPInputStream(c.getInputStream());
         } else {
@@ -44,8 +49,22 @@ public class Request implements com.github.batkinson.jrsync.zsync.RangeRequest {
         }
     }
 
+    /**
+     * Closes the response stream rather than disconnecting, which hands the socket back to the JDK's keep-alive cache
+     * so later requests to the same endpoint skip TCP and TLS setup.
+     */
     @Override
     public void close() {
-        c.disconnect();
+        if (!requested) {
+            return;
+        }
+        try {
+            InputStream in = c.getResponseCode() < 400 ? c.getInputStream() : c.getErrorStream();
+            if (in != null) {
+                in.close();
+            }
+        } catch (IOException e) {
+            c.disconnect();
+        }
     }
 }
@@ -0,0 +1,119 @@
+package com.github.cimsbioko.sidecar;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class CampaignLanesTest {
+
+    private final ManualExecutor executor = new ManualExecutor();
+    private final List<String> log = new ArrayList<>();
+
+    @Test
+    public void runsCampaignTasksInOrder() {
+        CampaignLanes lanes = new CampaignLanes(executor, 2);
+        Campaign a = campaign("a");
+        lanes.execute(a, task("a1"));
+        lanes.execute(a, () -> {
+            log.add("a2");
+            lanes.execute(a, task("a4"));
+        });
+        lanes.execute(a, task("a3"));
+        assertEquals(1, executor.queued());
+        executor.runAll();
+        assertEquals(asList("a1", "a2", "a3", "a4"), log);
+    }
+
+    @Test
+    public void capsRunningLanes() {
+        CampaignLanes lanes = new CampaignLanes(executor, 2);
+        lanes.execute(campaign("a"), task("a1"));
+        lanes.execute(campaign("b"), task("b1"));
+        lanes.execute(campaign("c"), task("c1"));
+        assertEquals(2, executor.queued());
+        executor.runNext();
+        assertEquals(2, executor.queued());  // c took a's turn
+        executor.runAll();
+        assertEquals(asList("a1", "b1", "c1"), log);
+        lanes.execute(campaign("d"), task("d1"));
+        assertEquals(1, executor.queued());
+    }
+
+    @Test
+    public void startsHighestPriorityWaitingLane() {
+        Map<Campaign, Double> priorities = new HashMap<>();
+        priorities.put(campaign("c"), 5.0);
+        priorities.put(campaign("d"), 3.0);
+        priorities.put(campaign("e"), 3.0);
+        CampaignLanes lanes = new CampaignLanes(executor, 1);
+        lanes.setPriority(c -> priorities.getOrDefault(c, 0.0));
+        for (String name : asList("a", "b", "c", "d", "e")) {
+            lanes.execute(campaign(name), task(name));
+        }
+        assertEquals(1, executor.queued());
+        executor.runAll();
+        assertEquals(asList("a", "c", "d", "e", "b"), log);
+    }
+
+    @Test
+    public void survivesFailingTask() {
+        CampaignLanes lanes = new CampaignLanes(executor, 1);
+        Campaign a = campaign("a");
+        lanes.execute(a, () -> {
+            throw new IllegalStateException("expected");
+        });
+        lanes.execute(a, task("a2"));
+        lanes.execute(campaign("b"), task("b1"));
+        executor.runAll();
+        assertEquals(asList("a2", "b1"), log);
+        lanes.execute(a, task("a3"));
+        executor.runAll();
+        assertEquals(asList("a2", "b1", "a3"), log);
+    }
+
+    private Runnable task(String name) {
+        return () -> log.add(name);
+    }
+
+    private static Campaign campaign(String uuid) {
+        Campaign campaign = new Campaign();
+        campaign.setUuid(uuid);
+        return campaign;
+    }
+
+    /**
+     * Holds submitted lanes until the test runs them, on the test's own thread.
+     */
+    private static class ManualExecutor implements Executor {
+
+        private final Queue<Runnable> queue = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        int queued() {
+            return queue.size();
+        }
+
+        void runNext() {
+            queue.remove().run();
+        }
+
+        void runAll() {
+            while (!queue.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.cimsbioko.sidecar;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import static com.github.cimsbioko.sidecar.Compressor.BLOCK_SIZE;
+import static com.github.cimsbioko.sidecar.Compressor.GZIP_TRAILER_SIZE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CompressorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final Compressor compressor = new Compressor(2);
+
+    @After
+    public void shutdown() {
+        compressor.shutdown();
+    }
+
+    @Test
+    public void roundTripsEmptyInput() throws Exception {
+        roundTrip(new byte[0]);
+    }
+
+    @Test
+    public void roundTripsPartialBlock() throws Exception {
+        roundTrip(data(1000));
+    }
+
+    @Test
+    public void roundTripsWholeBlocks() throws Exception {
+        roundTrip(data(BLOCK_SIZE));
+        roundTrip(data(5 * BLOCK_SIZE));
+    }
+
+    @Test
+    public void roundTripsBlocksAndAByte() throws Exception {
+        roundTrip(data(BLOCK_SIZE + 1));
+        roundTrip(data(5 * BLOCK_SIZE + 1));
+    }
+
+    @Test
+    public void digestsSource() throws Exception {
+        byte[] source = data(2 * BLOCK_SIZE + 7);
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        compressor.compress(write(source), tmp.newFile(), digest);
+        assertArrayEquals(MessageDigest.getInstance("MD5").digest(source), digest.digest());
+    }
+
+    private void roundTrip(byte[] source) throws IOException {
+        File target = tmp.newFile();
+        compressor.compress(write(source), target);
+
+        try (InputStream in = new GZIPInputStream(new FileInputStream(target))) {
+            assertArrayEquals(source, read(in));
+        }
+
+        byte[] compressed = Files.readAllBytes(target.toPath());
+        ByteBuffer trailer = ByteBuffer.wrap(compressed, compressed.length - GZIP_TRAILER_SIZE, GZIP_TRAILER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        crc.update(source);
+        assertEquals(crc.getValue(), trailer.getInt() & 0xffffffffL);
+        assertEquals(source.length, trailer.getInt());
+    }
+
+    /**
+     * Returns data with runs that repeat across block boundaries, so blocks depend on their primed dictionary.
+     */
+    private static byte[] data(int length) {
+        Random random = new Random(length);
+        byte[] phrase = new byte[4096];
+        random.nextBytes(phrase);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i += 512) {
+            int n = Math.min(512, length - i);
+            if (random.nextInt(4) == 0) {
+                byte[] noise = new byte[n];
+                random.nextBytes(noise);
+                System.arraycopy(noise, 0, data, i, n);
+            } else {
+                System.arraycopy(phrase, random.nextInt(phrase.length - 512), data, i, n);
+            }
+        }
+        return data;
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = tmp.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int n; (n = in.read(buf)) >= 0; ) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.cimsbioko.sidecar;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaTest {
+
+    private static final int PAGE = 1024;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void roundTripsChangedAndMovedPages() throws Exception {
+        byte[] base = database(32, 1);
+        byte[] target = database(40, 1);
+        System.arraycopy(base, 5 * PAGE, target, 30 * PAGE, PAGE);  // moved page
+        fill(target, 7, 2);  // rewritten page
+        byte[] result = roundTrip(base, target, target.length);
+        assertArrayEquals(target, result);
+    }
+
+    @Test
+    public void roundTripsUnalignedTail() throws Exception {
+        byte[] base = database(16, 3);
+        byte[] target = new byte[16 * PAGE + 100];
+        System.arraycopy(base, 0, target, 0, base.length);
+        assertArrayEquals(target, roundTrip(base, target, 100));
+    }
+
+    @Test
+    public void copiesSharedPages() throws Exception {
+        byte[] base = database(64, 4);
+        byte[] target = base.clone();
+        fill(target, 10, 5);
+        long literal = create(base, target, tmp.newFile());
+        assertEquals(PAGE, literal);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFormats() throws Exception {
+        File base = write(database(1, 6));
+        try (InputStream patch = new FileInputStream(base)) {
+            Delta.apply(base, patch, tmp.newFile());
+        }
+    }
+
+    private byte[] roundTrip(byte[] base, byte[] target, long maxLiteral) throws Exception {
+        File delta = tmp.newFile(), rebuilt = tmp.newFile();
+        long literal = create(base, target, delta);
+        assertTrue("literal bytes " + literal, literal <= Math.max(maxLiteral, 2 * PAGE));
+        try (InputStream patch = new FileInputStream(delta)) {
+            assertEquals("target", Delta.apply(write(base), patch, rebuilt));
+        }
+        return Files.readAllBytes(rebuilt.toPath());
+    }
+
+    private long create(byte[] base, byte[] target, File delta) throws Exception {
+        return Delta.create(write(base), "base", write(target), "target", delta);
+    }
+
+    private File write(byte[] contents) throws IOException {
+        File file = tmp.newFile();
+        Files.write(file.toPath(), contents);
+        return file;
+    }
+
+    /**
+     * Builds pages of random content behind a SQLite header naming the page size, as delta creation expects.
+     */
+    private static byte[] database(int pages, long seed) {
+        byte[] db = new byte[pages * PAGE];
+        for (int page = 1; page < pages; page++) {
+            fill(db, page, seed * 1000 + page);
+        }
+        byte[] magic = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(magic, 0, db, 0, magic.length);
+        db[16] = (byte) (PAGE >> 8);
+        db[17] = (byte) PAGE;
+        return db;
+    }
+
+    private static void fill(byte[] db, int page, long seed) {
+        byte[] content = new byte[PAGE];
+        new Random(seed).nextBytes(content);
+        System.arraycopy(content, 0, db, page * PAGE, PAGE);
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.cimsbioko.sidecar;
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class DemandTrackerTest {
+
+    private final DemandTracker demand = new DemandTracker();
+    private final Campaign a = campaign("a"), b = campaign("b"), c = campaign("c");
+
+    @Test
+    public void ranksByDemand() {
+        demand.record(b, DemandTracker.Outcome.DOWNLOAD);
+        demand.record(c, DemandTracker.Outcome.MISSING);
+        assertEquals(asList(c, b, a), demand.byPriority(asList(a, b, c)));
+    }
+
+    @Test
+    public void boostOutranksPinsUntilCleared() {
+        demand.pin("b", 1000.0);
+        demand.record(c, DemandTracker.Outcome.MISSING);
+        demand.boost(a);
+        assertEquals(asList(a, b, c), demand.byPriority(asList(a, b, c)));
+        demand.clearBoost(a);
+        assertEquals(asList(b, c, a), demand.byPriority(asList(a, b, c)));
+    }
+
+    private static Campaign campaign(String uuid) {
+        Campaign campaign = new Campaign();
+        campaign.setUuid(uuid);
+        return campaign;
+    }
+}
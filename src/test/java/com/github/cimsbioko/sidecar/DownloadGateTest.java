@@ -0,0 +1,94 @@
+package com.github.cimsbioko.sidecar;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+
+import static org.junit.Assert.*;
+
+public class DownloadGateTest {
+
+    private DownloadGate gate;
+
+    @Before
+    public void setUp() {
+        gate = new DownloadGate(1, 1, 30000, 30, 0);
+    }
+
+    @Test
+    public void queuesWithoutBlockingAndHandsOverSlot() throws Exception {
+        DownloadGate.Permit first = gate.acquire(request(), new MockHttpServletResponse());
+        assertNotNull(first);
+
+        MockHttpServletRequest waiting = request();
+        assertNull(gate.acquire(waiting, new MockHttpServletResponse()));
+        assertTrue(waiting.isAsyncStarted());
+        assertEquals(1, gate.getQueued());
+
+        first.close();
+        assertEquals(0, gate.getQueued());
+        assertEquals(1, gate.getActive());
+        assertNotNull(((MockAsyncContext) waiting.getAsyncContext()).getDispatchedPath());
+
+        redispatch(waiting);
+        DownloadGate.Permit handed = gate.acquire(waiting, new MockHttpServletResponse());
+        assertNotNull(handed);
+        assertTrue(gate.wasQueued(waiting));
+        handed.close();
+        assertEquals(0, gate.getActive());
+    }
+
+    @Test
+    public void refusesBeyondQueue() throws Exception {
+        assertNotNull(gate.acquire(request(), new MockHttpServletResponse()));
+        assertNull(gate.acquire(request(), new MockHttpServletResponse()));
+        MockHttpServletRequest refused = request();
+        assertNull(gate.acquire(refused, new MockHttpServletResponse()));
+        assertFalse(refused.isAsyncStarted());
+    }
+
+    @Test
+    public void refusesAfterWaitRunsOut() throws Exception {
+        assertNotNull(gate.acquire(request(), new MockHttpServletResponse()));
+        MockHttpServletRequest waiting = request();
+        assertNull(gate.acquire(waiting, new MockHttpServletResponse()));
+        MockAsyncContext context = (MockAsyncContext) waiting.getAsyncContext();
+        for (AsyncListener listener : context.getListeners()) {
+            listener.onTimeout(new AsyncEvent(context, waiting, null));
+        }
+        assertEquals(0, gate.getQueued());
+        redispatch(waiting);
+        assertNull(gate.acquire(waiting, new MockHttpServletResponse()));
+        assertFalse(waiting.isAsyncStarted());
+    }
+
+    @Test
+    public void returnsSlotNotTaken() throws Exception {
+        DownloadGate.Permit first = gate.acquire(request(), new MockHttpServletResponse());
+        MockHttpServletRequest waiting = request();
+        gate.acquire(waiting, new MockHttpServletResponse());
+        MockAsyncContext context = (MockAsyncContext) waiting.getAsyncContext();
+        first.close();
+        assertEquals(1, gate.getActive());
+        redispatch(waiting);
+        context.complete();  // answered without a download, say 304
+        assertEquals(0, gate.getActive());
+    }
+
+    private static MockHttpServletRequest request() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/rest/mobiledb/campaign");
+        request.setAsyncSupported(true);
+        return request;
+    }
+
+    private static void redispatch(MockHttpServletRequest request) {
+        request.setAsyncStarted(false);
+        request.setDispatcherType(DispatcherType.ASYNC);
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.cimsbioko.sidecar;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.cimsbioko.sidecar.events.ContentReady;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.actuate.metrics.dropwizard.DropwizardMetricServices;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static com.github.cimsbioko.sidecar.Compressor.GZIP_HEADER_SIZE;
+import static com.github.cimsbioko.sidecar.Compressor.GZIP_TRAILER_SIZE;
+import static com.github.cimsbioko.sidecar.ExportService.INSTALLABLE_FILENAME;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+public class ExportServiceTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final Campaign campaign = new Campaign();
+    private final ExportService exports = new ExportService();
+
+    private byte[] db;
+    private Content content;
+
+    @Before
+    public void setUp() throws IOException {
+        campaign.setUuid("campaign");
+        db = new byte[300 * 1024 + 17];  // spans several compression blocks
+        Random random = new Random(1);
+        for (int i = 0; i < db.length; i += 64) {
+            db[i + random.nextInt(Math.min(64, db.length - i))] = (byte) random.nextInt();
+        }
+        File dbFile = write("content.db", db), gzip = tmp.newFile("content.db.gz");
+        Compressor compressor = new Compressor(2);
+        try {
+            compressor.compress(dbFile, gzip);
+        } finally {
+            compressor.shutdown();
+        }
+        content = new Content("abc123", dbFile, write("content.db.meta", new byte[0]), gzip, null);
+        exports.onContentReady(new ContentReady(campaign, content));
+    }
+
+    @Test
+    public void archiveReadsWithZipFile() throws IOException {
+        File archive = archive();
+        try (ZipFile zip = new ZipFile(archive)) {
+            assertEquals(1, zip.size());
+            ZipEntry entry = zip.getEntry(INSTALLABLE_FILENAME);
+            assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+            assertEquals(db.length, entry.getSize());
+            assertEquals(crc(db), entry.getCrc());
+            try (InputStream in = zip.getInputStream(entry)) {
+                assertArrayEquals(db, read(in));
+            }
+        }
+    }
+
+    @Test
+    public void archiveStreamsWithZipInputStream() throws IOException {
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(archive()))) {
+            ZipEntry entry = in.getNextEntry();
+            assertEquals(INSTALLABLE_FILENAME, entry.getName());
+            assertArrayEquals(db, read(in));
+            assertEquals(db.length, entry.getSize());
+            assertEquals(crc(db), entry.getCrc());
+            assertEquals(content.getCompressedContentFile().length() - GZIP_HEADER_SIZE - GZIP_TRAILER_SIZE,
+                    entry.getCompressedSize());
+            assertNull(in.getNextEntry());
+        }
+    }
+
+    @Test
+    public void servesRangesOfArchive() throws IOException {
+        byte[] archive = Files.readAllBytes(archive().toPath());
+        FileSender sender = new FileSender();
+        setField(sender, "gauges", new DropwizardMetricServices(new MetricRegistry()));
+        setField(sender, "metrics", new MetricRegistry());
+
+        // crosses from the generated local header into the stored deflate data
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/export");
+        request.addHeader("Range", "bytes=20-4095");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        sender.send(exports.getArchive(campaign, content), "application/zip", null, "abc123", request, response);
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 20-4095/" + archive.length, response.getHeader("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(archive, 20, 4096), response.getContentAsByteArray());
+
+        // the tail holds the central directory
+        request = new MockHttpServletRequest("GET", "/export");
+        request.addHeader("Range", "bytes=-100");
+        response = new MockHttpServletResponse();
+        sender.send(exports.getArchive(campaign, content), "application/zip", null, "abc123", request, response);
+        assertArrayEquals(Arrays.copyOfRange(archive, archive.length - 100, archive.length), response.getContentAsByteArray());
+    }
+
+    @Test
+    public void dropsArchiveOfOtherContent() {
+        assertNull(exports.getArchive(campaign, new Content("def456", content.getContentFile(), content.getMetadataFile())));
+    }
+
+    private File archive() throws IOException {
+        File file = tmp.newFile("export.zip");
+        try (OutputStream out = new FileOutputStream(file)) {
+            exports.getArchive(campaign, content).writeTo(out);
+        }
+        return file;
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = tmp.newFile(name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int n; (n = in.read(buf)) >= 0; ) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
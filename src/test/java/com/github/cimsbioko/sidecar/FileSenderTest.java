@@ -0,0 +1,233 @@
+package com.github.cimsbioko.sidecar;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.actuate.metrics.dropwizard.DropwizardMetricServices;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+
+import static com.github.cimsbioko.sidecar.FileSender.parseRange;
+import static com.github.cimsbioko.sidecar.FileSender.parseRanges;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+public class FileSenderTest {
+
+    private static final long LENGTH = 10000;
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void parsesBoundedAndOpenRanges() {
+        assertArrayEquals(new long[]{0, 100}, parseRange("bytes=0-99", LENGTH));
+        assertArrayEquals(new long[]{9000, LENGTH}, parseRange("bytes=9000-", LENGTH));
+        assertArrayEquals(new long[]{9990, LENGTH}, parseRange("bytes=9990-20000", LENGTH));
+    }
+
+    @Test
+    public void parsesSuffixRanges() {
+        assertArrayEquals(new long[]{LENGTH - 500, LENGTH}, parseRange("bytes=-500", LENGTH));
+        assertArrayEquals(new long[]{0, LENGTH}, parseRange("bytes=-20000", LENGTH));
+        assertNull(parseRange("bytes=-0", LENGTH));
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRanges() {
+        assertNull(parseRange("bytes=10000-", LENGTH));
+        assertNull(parseRange("bytes=500-100", LENGTH));
+        assertNull(parseRange("bytes=abc-", LENGTH));
+        assertNull(parseRange("items=0-1", LENGTH));
+        assertNull(parseRanges("bytes=20000-30000, 10000-", LENGTH, 0, 0));
+        assertNull(parseRanges("bytes=-0", LENGTH, 0, 0));
+    }
+
+    @Test
+    public void ignoresInvalidRanges() {
+        assertTrue(parseRanges("bytes=abc-", LENGTH, 0, 0).isEmpty());
+        assertTrue(parseRanges("items=0-1", LENGTH, 0, 0).isEmpty());
+        assertTrue(parseRanges("bytes=500-100", LENGTH, 0, 0).isEmpty());
+        assertTrue(parseRanges("bytes=0-9, 5", LENGTH, 0, 0).isEmpty());
+        assertTrue(parseRanges("bytes=", LENGTH, 0, 0).isEmpty());
+        assertEquals(1, parseRanges("bytes=0-9,, ", LENGTH, 0, 0).size());
+    }
+
+    @Test
+    public void sendsWholeBodyForInvalidRange() throws Exception {
+        File file = file(1000);
+        MockHttpServletRequest request = request();
+        request.removeAttribute(SENDFILE_SUPPORT);
+        request.setAsyncSupported(false);
+        request.addHeader("Range", "bytes=1-x");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        sender().send(file, "application/x-sqlite3", null, "abc", request, response);
+        assertEquals(200, response.getStatus());
+        assertNull(response.getHeader("Content-Range"));
+        assertArrayEquals(Files.readAllBytes(file.toPath()), response.getContentAsByteArray());
+    }
+
+    @Test
+    public void refusesUnsatisfiableRange() throws Exception {
+        MockHttpServletRequest request = request();
+        request.addHeader("Range", "bytes=5000-");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        sender().send(file(1000), "application/x-sqlite3", null, "abc", request, response);
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */1000", response.getHeader("Content-Range"));
+    }
+
+    @Test
+    public void skipsUnsatisfiableSpansAmongOthers() {
+        List<long[]> spans = parseRanges("bytes=20000-, 0-9", LENGTH, 0, 0);
+        assertEquals(1, spans.size());
+        assertArrayEquals(new long[]{0, 10}, spans.get(0));
+    }
+
+    @Test
+    public void mergesOverlappingRanges() {
+        List<long[]> spans = parseRanges("bytes=500-999, 0-599, 800-1199", LENGTH, 0, 0);
+        assertEquals(1, spans.size());
+        assertArrayEquals(new long[]{0, 1200}, spans.get(0));
+    }
+
+    @Test
+    public void mergesRangesWithinGap() {
+        List<long[]> spans = parseRanges("bytes=0-99, 150-199, 1000-1099", LENGTH, 50, 0);
+        assertEquals(2, spans.size());
+        assertArrayEquals(new long[]{0, 200}, spans.get(0));
+        assertArrayEquals(new long[]{1000, 1100}, spans.get(1));
+        assertEquals(3, parseRanges("bytes=0-99, 150-199, 1000-1099", LENGTH, 49, 0).size());
+    }
+
+    @Test
+    public void capsPartsByClosingSmallestGaps() {
+        List<long[]> spans = parseRanges("bytes=0-9, 100-109, 120-129, 5000-5009, 5030-5039", LENGTH, 0, 2);
+        assertEquals(2, spans.size());
+        assertArrayEquals(new long[]{0, 130}, spans.get(0));
+        assertArrayEquals(new long[]{5000, 5040}, spans.get(1));
+    }
+
+    @Test
+    public void leavesPartsUnderCap() {
+        assertEquals(3, parseRanges("bytes=0-9, 100-109, 200-209", LENGTH, 0, 3).size());
+        assertEquals(3, parseRanges("bytes=0-9, 100-109, 200-209", LENGTH, 0, 0).size());
+    }
+
+    @Test
+    public void sendsUngatedFilesWithSendfile() throws Exception {
+        File file = file(1000);
+        MockHttpServletRequest request = request();
+        sender().send(file, "application/x-sqlite3", null, "abc", request, new MockHttpServletResponse());
+        assertEquals(file.getCanonicalPath(), request.getAttribute(SENDFILE_FILENAME));
+    }
+
+    @Test
+    public void writesMemoryBodiesDirectly() throws Exception {
+        ByteBuffer cached = ByteBuffer.allocateDirect(1000);
+        MockHttpServletRequest request = request();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        sender().send(new Body.Builder().add(cached).build(), "application/x-sqlite3", null, "abc", request, response);
+        assertFalse(request.isAsyncStarted());
+        assertEquals(1000, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    public void holdsSlotUntilGatedTransferEnds() throws Exception {
+        File file = file(200000);
+        DownloadGate gate = new DownloadGate(1, 0, 30000, 30, 0);
+        MockHttpServletRequest request = request();
+        PendingOutput out = new PendingOutput();
+        try (DownloadGate.Permit permit = gate.acquire("client")) {
+            sender().send(Body.of(file), "application/x-sqlite3", null, "abc", permit, request, response(out));
+        }
+        assertNull(request.getAttribute(SENDFILE_FILENAME));
+        assertTrue(request.isAsyncStarted());
+        assertEquals(1, gate.getActive());
+
+        assertNotNull(out.listener);
+        out.listener.onWritePossible();
+        assertEquals(0, gate.getActive());
+        assertArrayEquals(Files.readAllBytes(file.toPath()), out.bytes.toByteArray());
+    }
+
+    private static FileSender sender() {
+        FileSender sender = new FileSender();
+        setField(sender, "gauges", new DropwizardMetricServices(new MetricRegistry()));
+        setField(sender, "metrics", new MetricRegistry());
+        setField(sender, "async", true);
+        return sender;
+    }
+
+    private static MockHttpServletRequest request() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/rest/mobiledb/campaign");
+        request.setAsyncSupported(true);
+        request.setAttribute(SENDFILE_SUPPORT, true);
+        return request;
+    }
+
+    private static HttpServletResponseWrapper response(ServletOutputStream out) {
+        return new HttpServletResponseWrapper(new MockHttpServletResponse()) {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return out;
+            }
+        };
+    }
+
+    private File file(int length) throws Exception {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        File file = tmp.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    /**
+     * Non-blocking output that accepts everything, but only once the test says it may be written.
+     */
+    private static class PendingOutput extends ServletOutputStream {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private WriteListener listener;
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            listener = writeListener;
+        }
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+        }
+    }
+}
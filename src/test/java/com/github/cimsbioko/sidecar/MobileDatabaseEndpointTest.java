@@ -0,0 +1,67 @@
+package com.github.cimsbioko.sidecar;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import static com.github.cimsbioko.sidecar.MobileDatabaseEndpoint.acceptsGzip;
+import static com.github.cimsbioko.sidecar.MobileDatabaseEndpoint.heldHashes;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MobileDatabaseEndpointTest {
+
+    @Test
+    public void acceptsNamedGzip() {
+        assertTrue(acceptsGzip("gzip"));
+        assertTrue(acceptsGzip("deflate, gzip;q=0.5"));
+        assertTrue(acceptsGzip("x-gzip"));
+    }
+
+    @Test
+    public void rejectsZeroQuality() {
+        assertFalse(acceptsGzip("gzip;q=0"));
+        assertFalse(acceptsGzip("gzip; q=0.0, identity"));
+        assertFalse(acceptsGzip("*, gzip;q=0"));
+    }
+
+    @Test
+    public void followsWildcard() {
+        assertTrue(acceptsGzip("*"));
+        assertFalse(acceptsGzip("*;q=0"));
+        assertFalse(acceptsGzip("identity"));
+        assertFalse(acceptsGzip(null));
+    }
+
+    @Test
+    public void readsHeldHashes() {
+        assertEquals(asList("abc123", "DEF456"), heldHashes(ifNoneMatch("\"abc123\", W/\"DEF456\"")));
+        assertEquals(emptyList(), heldHashes(ifNoneMatch(null)));
+    }
+
+    @Test
+    public void readsDeltaTagsAsTheirTarget() {
+        assertEquals(asList("beef"), heldHashes(ifNoneMatch("\"cafe-beef\"")));
+    }
+
+    @Test
+    public void readsGzipTagsAsTheirVersion() {
+        assertEquals(asList("beef", "cafe"), heldHashes(ifNoneMatch("\"beef-gz\", W/\"cafe-gz\"")));
+    }
+
+    @Test
+    public void ignoresNonHashTags() {
+        assertEquals(emptyList(), heldHashes(ifNoneMatch("\"../../etc\", \"*\", \"xyz\"")));
+    }
+
+    private static ServletWebRequest ifNoneMatch(String value) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        if (value != null) {
+            request.addHeader("If-None-Match", value);
+        }
+        return new ServletWebRequest(request);
+    }
+}
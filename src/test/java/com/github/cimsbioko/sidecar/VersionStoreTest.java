@@ -0,0 +1,112 @@
+package com.github.cimsbioko.sidecar;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+public class VersionStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final Campaign campaign = new Campaign();
+    private final FileSystem fs = new FileSystem();
+    private final VersionStore versions = new VersionStore();
+
+    @Before
+    public void setUp() {
+        campaign.setUuid("campaign");
+        setField(fs, "dataDir", tmp.getRoot().toPath());
+        setField(versions, "fs", fs);
+        setField(versions, "retainedVersions", 1);
+    }
+
+    @Test
+    public void expiresBeyondRetainedCount() throws IOException {
+        retain("aa");
+        retain("bb");
+        retain("cc");
+        assertEquals(asList("cc", "bb"), hashes());
+        assertFalse(fs.getVersion(campaign, "aa").exists());
+        assertFalse(fs.getVersionMetadata(campaign, "aa").exists());
+    }
+
+    @Test
+    public void ordersByRetentionNotTimestamps() throws IOException {
+        retain("aa");
+        retain("bb");
+        assertTrue(fs.getVersion(campaign, "aa").setLastModified(System.currentTimeMillis() + 3600000));
+        assertEquals(asList("bb", "aa"), hashes());
+        retain("aa");  // a rollback makes the older content current again
+        assertEquals(asList("aa", "bb"), hashes());
+        retain("cc");
+        assertEquals(asList("cc", "aa"), hashes());
+    }
+
+    @Test
+    public void keepsLeasedVersionUntilReleased() throws IOException {
+        retain("aa");
+        retain("bb");
+        VersionStore.Lease lease = versions.acquire(versions.getVersion(campaign, "aa"));
+        assertNotNull(lease);
+        VersionStore.Lease shared = lease.share();
+
+        retain("cc");
+        File version = fs.getVersion(campaign, "aa");
+        assertTrue(version.exists());
+        assertEquals(asList("cc", "bb"), hashes());
+        assertNull(versions.acquire(versions.getVersion(campaign, "aa")));
+
+        lease.close();
+        assertTrue(version.exists());
+        shared.close();
+        assertFalse(version.exists());
+        assertFalse(fs.getVersionMetadata(campaign, "aa").exists());
+    }
+
+    @Test
+    public void leasesNothingOutsideVersions() throws IOException {
+        Content installed = install("aa");
+        VersionStore.Lease lease = versions.acquire(installed);
+        assertNotNull(lease);
+        lease.close();
+        assertTrue(installed.getContentFile().exists());
+    }
+
+    private List<String> hashes() throws IOException {
+        return versions.getVersions(campaign).stream()
+                .map(f -> f.getName().replaceFirst("\\.db$", "")).collect(Collectors.toList());
+    }
+
+    private void retain(String hash) throws IOException {
+        versions.retain(campaign, install(hash));
+    }
+
+    /**
+     * Writes content as installing it would, replacing the files of whatever was installed before.
+     */
+    private Content install(String hash) throws IOException {
+        File content = fs.getContent(campaign), metadata = fs.getMetadata(campaign);
+        Files.deleteIfExists(content.toPath());
+        Files.deleteIfExists(metadata.toPath());
+        Files.write(content.toPath(), hash.getBytes(StandardCharsets.UTF_8));
+        Files.write(metadata.toPath(), hash.getBytes(StandardCharsets.UTF_8));
+        return new Content(hash, content, metadata);
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.cimsbioko.sidecar.http;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static com.github.cimsbioko.sidecar.http.ByteRanges.boundary;
+import static com.github.cimsbioko.sidecar.http.ByteRanges.length;
+import static com.github.cimsbioko.sidecar.http.ByteRanges.partHeader;
+import static com.github.cimsbioko.sidecar.http.ByteRanges.reframe;
+import static com.github.cimsbioko.sidecar.http.ByteRanges.spans;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ByteRangesTest {
+
+    @Test
+    public void reframesParts() throws IOException {
+        String body = "preamble\r\n"
+                + "\r\n--in\r\nContent-Type: application/x-sqlite3\r\nContent-Range: bytes 0-4/100\r\n\r\nhello"
+                + "\r\n--in\r\ncontent-range: bytes 95-99/100\r\n\r\nworld"
+                + "\r\n--in--\r\nepilogue";
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(partHeader("out", "application/x-sqlite3", "bytes 0-4/100"));
+        expected.write(ascii("hello"));
+        expected.write(partHeader("out", null, "bytes 95-99/100"));
+        expected.write(ascii("world"));
+        assertArrayEquals(expected.toByteArray(), read(reframe(stream(body), "in", "out")));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWrongBoundary() throws IOException {
+        String body = "\r\n--in\r\nContent-Range: bytes 0-4/100\r\n\r\nhello"
+                + "\r\n--other\r\nContent-Range: bytes 95-99/100\r\n\r\nworld"
+                + "\r\n--in--\r\n";
+        read(reframe(stream(body), "in", "out"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsPartLongerThanItsRange() throws IOException {
+        String body = "\r\n--in\r\nContent-Range: bytes 0-4/100\r\n\r\nhello, world"
+                + "\r\n--in--\r\n";
+        read(reframe(stream(body), "in", "out"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsPartWithoutRange() throws IOException {
+        read(reframe(stream("\r\n--in\r\nContent-Type: text/plain\r\n\r\nhello\r\n--in--\r\n"), "in", "out"));
+    }
+
+    @Test
+    public void readsHeaders() throws IOException {
+        assertEquals("abc", boundary("multipart/byteranges; boundary=\"abc\""));
+        assertEquals(5, length("bytes 95-99/100"));
+        assertEquals(asList("0-9", "100-"), spans("bytes=0-9, 100-"));
+        assertEquals(emptyList(), spans("items=0-9"));
+    }
+
+    private static InputStream stream(String s) {
+        return new ByteArrayInputStream(ascii(s));
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[7];  // odd size so reads straddle headers and parts
+        for (int n; (n = in.read(buf)) >= 0; ) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.cimsbioko.sidecar.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.cimsbioko.sidecar.http.ByteRangesTest.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelRangeRequestTest {
+
+    private static final byte[] DATA = new byte[1000];
+
+    static {
+        for (int i = 0; i < DATA.length; i++) {
+            DATA[i] = (byte) (i * 31);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private HttpServer server;
+    private ConnectionPool pool;
+    private boolean honorRanges = true;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::serve);
+        server.start();
+        pool = new ConnectionPool(2, tmp.getRoot().toPath());
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void mergesSinglePartAndMultipartResponses() throws IOException {
+        // the first group is one span, answered with a plain 206; the second comes back as multipart/byteranges
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ParallelRangeRequest request = request("bytes=0-9,100-109,990-999");
+        try {
+            assertEquals(206, request.getResponseCode());
+            String boundary = ByteRanges.boundary(request.getContentType());
+            expected.write(ByteRanges.partHeader(boundary, "application/octet-stream", "bytes 0-9/1000"));
+            expected.write(DATA, 0, 10);
+            expected.write(ByteRanges.partHeader(boundary, "application/octet-stream", "bytes 100-109/1000"));
+            expected.write(DATA, 100, 10);
+            expected.write(ByteRanges.partHeader(boundary, "application/octet-stream", "bytes 990-999/1000"));
+            expected.write(DATA, 990, 10);
+            expected.write(ByteRanges.terminator(boundary));
+            assertArrayEquals(expected.toByteArray(), read(request.getInputStream()));
+        } finally {
+            request.close();
+        }
+        assertEquals(0, tmp.getRoot().list().length);
+    }
+
+    @Test
+    public void fallsBackWhenRangesAreIgnored() throws IOException {
+        honorRanges = false;
+        AtomicLong received = new AtomicLong();
+        ParallelRangeRequest request = new ParallelRangeRequest(factory(), pool, received::addAndGet);
+        try {
+            request.setHeader("Range", "bytes=0-9,100-109");
+            assertEquals(200, request.getResponseCode());
+            assertArrayEquals(DATA, read(request.getInputStream()));
+        } finally {
+            request.close();
+        }
+        assertEquals(DATA.length, received.get());
+    }
+
+    @Test
+    public void passesSingleSpanThrough() throws IOException {
+        ParallelRangeRequest request = request("bytes=500-");
+        try {
+            assertEquals(206, request.getResponseCode());
+            assertTrue(request.getHeader("Content-Range").startsWith("bytes 500-999"));
+            assertEquals(500, read(request.getInputStream()).length);
+        } finally {
+            request.close();
+        }
+    }
+
+    private ParallelRangeRequest request(String range) {
+        ParallelRangeRequest request = new ParallelRangeRequest(factory(), pool, n -> {
+        });
+        request.setHeader("Range", range);
+        return request;
+    }
+
+    private RequestFactory factory() {
+        return new RequestFactory(URI.create("http://localhost:" + server.getAddress().getPort() + "/"), null, null);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        List<String> spans = ByteRanges.spans(exchange.getRequestHeaders().getFirst("Range"));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (!honorRanges || spans.isEmpty()) {
+            body.write(DATA);
+            exchange.sendResponseHeaders(200, body.size());
+        } else if (spans.size() == 1) {
+            long[] span = span(spans.get(0));
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().set("Content-Range", contentRange(span));
+            body.write(DATA, (int) span[0], (int) (span[1] - span[0]));
+            exchange.sendResponseHeaders(206, body.size());
+        } else {
+            exchange.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=upstream");
+            for (String s : spans) {
+                long[] span = span(s);
+                body.write(ascii("\r\n--upstream\r\nContent-Type: application/octet-stream\r\nContent-Range: "
+                        + contentRange(span) + "\r\n\r\n"));
+                body.write(DATA, (int) span[0], (int) (span[1] - span[0]));
+            }
+            body.write(ascii("\r\n--upstream--\r\n"));
+            exchange.sendResponseHeaders(206, body.size());
+        }
+        try (OutputStream out = exchange.getResponseBody()) {
+            body.writeTo(out);
+        }
+    }
+
+    private static long[] span(String spec) {
+        int dash = spec.indexOf('-');
+        String last = spec.substring(dash + 1);
+        return new long[]{Long.parseLong(spec.substring(0, dash)), last.isEmpty() ? DATA.length : Long.parseLong(last) + 1};
+    }
+
+    private static String contentRange(long[] span) {
+        return "bytes " + span[0] + "-" + (span[1] - 1) + "/" + DATA.length;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}